@@ -0,0 +1,191 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// A minimal HTTP/1.1 client for the benchmarks. It keeps one connection open while the
+// server allows it, reads Content-Length and chunked responses and throws the body away.
+public class BenchmarkClient implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 30000;
+    // written by ./benchmark.sh server, whose server runs on a copy of the root
+    private static final String BENCHMARK_SERVER_CONFIG = "../Benchmarks/server/config.ini";
+
+    private final String host;
+    private final int port;
+    private final boolean keepAlive;
+    private final byte[] discard;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    public BenchmarkClient(String host, int port, boolean keepAlive) {
+        this.host = host;
+        this.port = port;
+        this.keepAlive = keepAlive;
+        this.discard = new byte[64 * 1024];
+    }
+
+    // benchmarks that write files or POST (which rewrites params_info.html) only run against the
+    // benchmark server, never against the real root
+    public static boolean isBenchmarkServerRunning() {
+        return Files.exists(Paths.get(BENCHMARK_SERVER_CONFIG));
+    }
+
+    // the config of the server under test: the benchmark server's when it runs, otherwise config.ini
+    public static String serverConfigFile() {
+        return isBenchmarkServerRunning() ? BENCHMARK_SERVER_CONFIG : "../config.ini";
+    }
+
+    public static byte[] getRequest(String host, String path, boolean keepAlive, String extraHeaders) {
+        return ("GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "User-Agent: benchmark\r\n"
+                + extraHeaders
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public static byte[] postRequest(String host, String path, boolean keepAlive, byte[] body) {
+        byte[] head = ("POST " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "User-Agent: benchmark\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] request = new byte[head.length + body.length];
+        System.arraycopy(head, 0, request, 0, head.length);
+        System.arraycopy(body, 0, request, head.length, body.length);
+        return request;
+    }
+
+    // sends a complete request and reads the whole response, returns its status code.
+    // the body bytes are added to the bytes counter
+    public int execute(byte[] request, long[] bytes) throws IOException {
+        if (socket == null) {
+            connect();
+        }
+        out.write(request);
+        out.flush();
+
+        String statusLine = readLine();
+        if (statusLine == null) {
+            throw new EOFException("the server closed the connection");
+        }
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean serverCloses = false;
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("content-length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("transfer-encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            } else if (name.equalsIgnoreCase("connection")) {
+                serverCloses = value.equalsIgnoreCase("close");
+            }
+        }
+
+        boolean isHead = request[0] == 'H';
+        if (!isHead && status != 304 && status != 204) {
+            if (chunked) {
+                readChunkedBody(bytes);
+            } else if (contentLength >= 0) {
+                skip(contentLength, bytes);
+            } else {
+                skip(Long.MAX_VALUE, bytes); // the body ends with the connection
+                serverCloses = true;
+            }
+        }
+        if (!keepAlive || serverCloses) {
+            close();
+        }
+        return status;
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        out = socket.getOutputStream();
+    }
+
+    private void readChunkedBody(long[] bytes) throws IOException {
+        while (true) {
+            String sizeLine = readLine();
+            if (sizeLine == null) {
+                throw new EOFException();
+            }
+            int semicolon = sizeLine.indexOf(';');
+            long size = Long.parseLong(semicolon == -1 ? sizeLine.trim() : sizeLine.substring(0, semicolon).trim(), 16);
+            if (size == 0) {
+                // the trailers end with an empty line
+                String trailer;
+                while ((trailer = readLine()) != null && !trailer.isEmpty()) {
+                    // ignored
+                }
+                return;
+            }
+            skip(size, bytes);
+            readLine();
+        }
+    }
+
+    private void skip(long count, long[] bytes) throws IOException {
+        while (count > 0) {
+            int read = in.read(discard, 0, (int) Math.min(discard.length, count));
+            if (read == -1) {
+                if (count == Long.MAX_VALUE) {
+                    return;
+                }
+                throw new EOFException();
+            }
+            count -= read;
+            bytes[0] += read;
+        }
+    }
+
+    // a line without its "\r\n", or null at the end of the stream
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.size();
+                byte[] bytes = line.toByteArray();
+                return new String(bytes, 0, length > 0 && bytes[length - 1] == '\r' ? length - 1 : length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do, we open a new connection next time
+            }
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Microbenchmarks of the request and response pipeline, with warmup iterations and measured iterations
+// like JMH. Run with benchmark.sh, which compiles the server and these classes together.
+//
+// usage: java Benchmarks [name filter] [--iterations 5] [--warmup 3] [--time 1000]
+//
+// The round trip benchmarks need a running server (run.sh), they connect to the port of config.ini.
+public class Benchmarks {
+    // results are added here so the JIT can't drop the benchmarked code as dead
+    static volatile long sink;
+
+    private int iterations = 5;
+    private int warmupIterations = 3;
+    private long iterationMillis = 1000;
+    private String filter = "";
+    private final List<Benchmark> benchmarks = new ArrayList<>();
+
+    interface Operation {
+        long run() throws Exception;
+    }
+
+    private static class Benchmark {
+        final String name;
+        final Operation operation;
+
+        Benchmark(String name, Operation operation) {
+            this.name = name;
+            this.operation = operation;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig.init(BenchmarkClient.serverConfigFile());
+        Metrics.init(null);
+        MimeTypes.init(ServerConfig.instance);
+        // without the file cache's watcher PathResolver keeps its entries for negativeCacheTtl
+        FileCache.init(ServerConfig.instance.getRootDirectory(), 0, 0);
+        PathResolver.init(ServerConfig.instance);
+        Benchmarks suite = new Benchmarks();
+        suite.parseArguments(args);
+        suite.addBenchmarks();
+        suite.run();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                case "--warmup": warmupIterations = Integer.parseInt(args[++i]); break;
+                case "--time": iterationMillis = Long.parseLong(args[++i]); break;
+                default: filter = args[i];
+            }
+        }
+    }
+
+    private void add(String name, Operation operation) {
+        benchmarks.add(new Benchmark(name, operation));
+    }
+
+    private void addBenchmarks() {
+        byte[] getRequest = ("GET /images/picture1.png?size=large&lang=en HTTP/1.1\r\n"
+                + "Host: localhost:8080\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+                + "Accept: image/avif,image/webp,*/*\r\n"
+                + "Accept-Language: en-US,en;q=0.5\r\n"
+                + "Accept-Encoding: gzip, deflate, br\r\n"
+                + "Referer: http://localhost:8080/index.html\r\n"
+                + "Connection: keep-alive\r\n"
+                + "If-None-Match: \"1b2c-8f3a2d1e\"\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        add("parseGetRequest", () -> {
+            HTTPRequest request = new HTTPRequest(null, new RequestReader(new ByteArrayInputStream(getRequest)), ServerConfig.instance);
+            return request.getRequestedPage().length() + request.getParameters().size();
+        });
+
+        String form = "name=Israel&email=israel%40example.com&age=42&city=Tel+Aviv&comment=hello+world"
+                + "&subscribe=on&color=blue&size=M&quantity=3&coupon=";
+        byte[] formBytes = form.getBytes(StandardCharsets.UTF_8);
+        add("parseParametersString", () -> Util.parseParameters(form).size());
+        add("parseParametersStream", () -> Util.parseParameters(new ByteArrayInputStream(formBytes)).size());
+
+        Path[] files = {
+                Paths.get("index.html"), Paths.get("picture1.png"), Paths.get("favicon.ico"),
+                Paths.get("style.css"), Paths.get("data.bin"), Paths.get("photo.JPEG")
+        };
+        int[] next = {0};
+        add("lookupMimeType", () -> MimeTypes.instance.lookup(files[next[0]++ % files.length]).getContentType().length());
+
+        String[] requestedPages = {"/", "/index.html", "/images/a%20b.png", "/wp-admin/setup.php", "/../../etc/passwd"};
+        add("resolvePath", () -> PathResolver.instance.resolve(requestedPages[next[0]++ % requestedPages.length], ServerConfig.instance).getPath().getNameCount());
+
+        byte[] megabyte = new byte[1024 * 1024];
+        NullOutputStream discard = new NullOutputStream();
+        add("writeChunked1MB", () -> {
+            ChunkedOutputStream chunked = new ChunkedOutputStream(discard, ServerConfig.instance.getChunkSize());
+            new ByteArrayInputStream(megabyte).transferTo(chunked);
+            chunked.close();
+            return discard.written;
+        });
+        add("writeChunked1MBSmallWrites", () -> {
+            ChunkedOutputStream chunked = new ChunkedOutputStream(discard, ServerConfig.instance.getChunkSize());
+            for (int offset = 0; offset < megabyte.length; offset += 1024) {
+                chunked.write(megabyte, offset, 1024);
+            }
+            chunked.close();
+            return discard.written;
+        });
+
+        ResponseHeaders headers = new ResponseHeaders();
+        byte[] smallBody = "<html><body><h1>OK</h1></body></html>\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        add("writeResponseHeaders", () -> {
+            headers.start(200, "OK")
+                    .add(ResponseHeaders.CONTENT_TYPE, "text/html")
+                    .contentLength(smallBody.length);
+            headers.writeTo(discard, true, null, smallBody);
+            return discard.written;
+        });
+
+        String host = "localhost";
+        int port = ServerConfig.instance.getPort();
+        String page = "/" + ServerConfig.instance.getDefaultPage();
+        BenchmarkClient client = new BenchmarkClient(host, port, true);
+        long[] bytes = new long[1];
+        byte[] get = BenchmarkClient.getRequest(host, page, true, "");
+        byte[] chunkedGet = BenchmarkClient.getRequest(host, page, true, "chunked: yes\r\n");
+        byte[] post = BenchmarkClient.postRequest(host, "/form", true, formBytes);
+        add("roundTripGet", () -> client.execute(get, bytes));
+        add("roundTripChunkedGet", () -> client.execute(chunkedGet, bytes));
+        if (BenchmarkClient.isBenchmarkServerRunning()) {
+            add("roundTripPost", () -> client.execute(post, bytes));
+        } else {
+            System.out.println("roundTripPost is skipped, it needs the server of ./benchmark.sh server");
+        }
+    }
+
+    private void run() throws Exception {
+        System.out.printf("%-24s %14s %14s %10s%n", "benchmark", "ops/s", "ns/op", "error %");
+        for (Benchmark benchmark : benchmarks) {
+            if (!benchmark.name.contains(filter)) {
+                continue;
+            }
+            try {
+                for (int i = 0; i < warmupIterations; i++) {
+                    measure(benchmark.operation);
+                }
+                double[] results = new double[iterations];
+                for (int i = 0; i < iterations; i++) {
+                    results[i] = measure(benchmark.operation);
+                }
+                print(benchmark.name, results);
+            } catch (ConnectException e) {
+                System.out.printf("%-24s skipped, no server on port %d (start it with run.sh)%n",
+                        benchmark.name, ServerConfig.instance.getPort());
+            }
+        }
+    }
+
+    // runs the operation for iterationMillis and returns the operations per second
+    private double measure(Operation operation) throws Exception {
+        long result = 0;
+        long operations = 0;
+        long start = System.nanoTime();
+        long end = start + iterationMillis * 1_000_000;
+        long now;
+        do {
+            // the clock is read every few operations so it doesn't dominate the fast benchmarks
+            for (int i = 0; i < 64; i++) {
+                result += operation.run();
+            }
+            operations += 64;
+            now = System.nanoTime();
+        } while (now < end);
+        sink = result;
+        return operations * 1e9 / (now - start);
+    }
+
+    // counts the bytes instead of writing them, so only the encoding is measured
+    private static class NullOutputStream extends OutputStream {
+        long written;
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    }
+
+    private static void print(String name, double[] results) {
+        double mean = 0;
+        for (double result : results) {
+            mean += result;
+        }
+        mean /= results.length;
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean);
+        }
+        double deviation = results.length > 1 ? Math.sqrt(variance / (results.length - 1)) : 0;
+        System.out.printf("%-24s %14.1f %14.1f %10.1f%n", name, mean, 1e9 / mean, 100 * deviation / mean);
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+// Closed-loop load generator: every virtual user sends a request, waits for the whole
+// response and sends the next one. It reports the throughput and the latency percentiles.
+//
+// usage: java LoadGenerator [--host localhost] [--port 8080] [--concurrency 16] [--duration 10]
+//                           [--warmup 3] [--keep-alive true] [--paths /index.html,/picture1.png]
+//                           [--file-sizes 1024,65536,1048576] [--post false]
+//
+// --file-sizes writes a file of every size to the root directory and requests them instead of
+// --paths, so the same run can be repeated on another machine. Like --post it needs the server of
+// ./benchmark.sh server, which runs on a copy of the root, and the files are deleted afterwards.
+public class LoadGenerator {
+    private String host = "localhost";
+    private int port = -1;
+    private int concurrency = 16;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 3;
+    private boolean keepAlive = true;
+    private boolean post = false;
+    private List<String> paths = new ArrayList<>(List.of("/"));
+    private List<Long> fileSizes = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArguments(args);
+        generator.run();
+    }
+
+    private void parseArguments(String[] args) throws Exception {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--host": host = value; break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--concurrency": concurrency = Integer.parseInt(value); break;
+                case "--duration": durationSeconds = Integer.parseInt(value); break;
+                case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "--keep-alive": keepAlive = Boolean.parseBoolean(value); break;
+                case "--post": post = Boolean.parseBoolean(value); break;
+                case "--paths": paths = Arrays.asList(value.split(",")); break;
+                case "--file-sizes":
+                    for (String size : value.split(",")) {
+                        fileSizes.add(Long.parseLong(size.trim()));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        if ((!fileSizes.isEmpty() || post) && !BenchmarkClient.isBenchmarkServerRunning()) {
+            throw new IllegalArgumentException("--file-sizes and --post write to the root, start the server with ./benchmark.sh server");
+        }
+        if (port == -1 || !fileSizes.isEmpty()) {
+            ServerConfig.init(BenchmarkClient.serverConfigFile());
+            if (port == -1) {
+                port = ServerConfig.instance.getPort();
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        List<Path> createdFiles = new ArrayList<>();
+        try {
+            if (!fileSizes.isEmpty()) {
+                paths = createFiles(createdFiles);
+            }
+            runLoad();
+        } finally {
+            for (Path file : createdFiles) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void runLoad() throws Exception {
+        List<byte[]> requests = new ArrayList<>();
+        for (String path : paths) {
+            if (post) {
+                byte[] body = "name=benchmark&value=1234567890".getBytes(StandardCharsets.ISO_8859_1);
+                requests.add(BenchmarkClient.postRequest(host, path, keepAlive, body));
+            } else {
+                requests.add(BenchmarkClient.getRequest(host, path, keepAlive, ""));
+            }
+        }
+
+        System.out.println("load: " + concurrency + " users, " + (keepAlive ? "keep-alive" : "a connection per request")
+                + ", " + (post ? "POST " : "GET ") + paths + " on " + host + ":" + port);
+        if (warmupSeconds > 0) {
+            runPhase(requests, warmupSeconds);
+        }
+        Result result = runPhase(requests, durationSeconds);
+        result.print(durationSeconds);
+    }
+
+    // the files are added to createdFiles as they are written, so a failure doesn't leave any behind
+    private List<String> createFiles(List<Path> createdFiles) throws IOException {
+        List<String> created = new ArrayList<>();
+        for (long size : fileSizes) {
+            String name = "__bench_" + size + ".bin";
+            Path file = Paths.get(ServerConfig.instance.getRootDirectory(), name);
+            byte[] content = new byte[(int) size];
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) ('a' + i % 26);
+            }
+            createdFiles.add(file);
+            Files.write(file, content);
+            created.add("/" + name);
+        }
+        return created;
+    }
+
+    private Result runPhase(List<byte[]> requests, int seconds) throws InterruptedException {
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        Worker[] workers = new Worker[concurrency];
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            workers[i] = new Worker(requests, i, end, done);
+            Thread thread = new Thread(workers[i], "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        Result result = new Result();
+        for (Worker worker : workers) {
+            result.add(worker);
+        }
+        return result;
+    }
+
+    private class Worker implements Runnable {
+        private final List<byte[]> requests;
+        private final long end;
+        private final CountDownLatch done;
+        private int next;
+        long[] latencies = new long[1024];
+        int count;
+        int errors;
+        final long[] bytes = new long[1];
+
+        Worker(List<byte[]> requests, int first, long end, CountDownLatch done) {
+            this.requests = requests;
+            this.next = first;
+            this.end = end;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            BenchmarkClient client = new BenchmarkClient(host, port, keepAlive);
+            try {
+                while (System.nanoTime() < end) {
+                    byte[] request = requests.get(next++ % requests.size());
+                    long start = System.nanoTime();
+                    try {
+                        int status = client.execute(request, bytes);
+                        if (status >= 400) {
+                            errors++;
+                        }
+                    } catch (IOException e) {
+                        errors++;
+                        client.close();
+                        continue;
+                    }
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                }
+            } finally {
+                client.close();
+                done.countDown();
+            }
+        }
+    }
+
+    private static class Result {
+        long[] latencies = new long[0];
+        int errors;
+        long bytes;
+
+        void add(Worker worker) {
+            int previous = latencies.length;
+            latencies = Arrays.copyOf(latencies, previous + worker.count);
+            System.arraycopy(worker.latencies, 0, latencies, previous, worker.count);
+            errors += worker.errors;
+            bytes += worker.bytes[0];
+        }
+
+        void print(int seconds) {
+            Arrays.sort(latencies);
+            System.out.printf("requests: %d, errors: %d%n", latencies.length, errors);
+            System.out.printf("throughput: %.1f requests/s, %.2f MB/s%n",
+                    latencies.length / (double) seconds, bytes / (double) seconds / (1024 * 1024));
+            if (latencies.length > 0) {
+                System.out.printf("latency (ms): p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n",
+                        percentile(0.5), percentile(0.9), percentile(0.99), percentile(0.999),
+                        latencies[latencies.length - 1] / 1e6);
+            }
+        }
+
+        private double percentile(double fraction) {
+            int index = (int) Math.ceil(fraction * latencies.length) - 1;
+            return latencies[Math.max(0, index)] / 1e6;
+        }
+    }
+}
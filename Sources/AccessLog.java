@@ -0,0 +1,264 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous access log. The request threads only put a record in a lock-free ring buffer,
+// a single writer thread formats the records and writes them in batches to the log file
+// (or to stdout), so a slow console or disk doesn't slow down the requests.
+public class AccessLog {
+    public static AccessLog instance;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = 10_000_000; // how long the writer sleeps when there is nothing to write
+    // [10/Oct/2000:13:55:36 -0700]
+    private static final DateTimeFormatter COMMON_LOG_DATE =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final boolean combined; // the combined format adds the referer and the user agent
+    private volatile double headerSampleRate; // can change when the config is reloaded
+    private final boolean blockWhenFull;
+    private final long flushIntervalNanos;
+    private final Path file; // null when logging to stdout
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    // multi producer, single consumer ring. producers claim a slot by moving the tail with a CAS
+    // and then publish the record in it, the writer takes records from the head.
+    private final AtomicReferenceArray<Record> ring;
+    private final int mask;
+    private final AtomicLong tail;
+    private final AtomicLong head;
+    private final AtomicLong dropped;
+
+    private final Thread writer;
+    private volatile boolean closed;
+    private OutputStream out;
+    private long fileSize;
+
+    public static void init(ServerConfig config) throws IOException {
+        instance = new AccessLog(config.getLogFile(), config.getLogFormat(), config.getLogHeaderSampleRate(),
+                config.getLogBufferSize(), config.getLogWhenFull(), config.getLogFlushInterval(),
+                config.getLogMaxFileSize(), config.getLogMaxFiles());
+        instance.writer.start();
+        // the records that are still in the ring are written by close(), which the server's shutdown
+        // hook calls after the last requests finished
+    }
+
+    public AccessLog(String file, String format, double headerSampleRate, int bufferSize, String whenFull,
+                     long flushInterval, long maxFileSize, int maxFiles) throws IOException {
+        this.combined = format.equals("combined");
+        this.headerSampleRate = headerSampleRate;
+        this.blockWhenFull = whenFull.equals("block");
+        this.flushIntervalNanos = flushInterval * 1_000_000;
+        this.file = file.isEmpty() ? null : Paths.get(file).toAbsolutePath();
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        // the capacity is rounded up to a power of two so the slot is found with a mask
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.tail = new AtomicLong();
+        this.head = new AtomicLong();
+        this.dropped = new AtomicLong();
+
+        openOutput();
+        this.writer = new Thread(this::writeLoop, "access-log-writer");
+        this.writer.setDaemon(true);
+    }
+
+    // decides before a request is parsed whether its full headers go to the log
+    public boolean sampleHeaders() {
+        double rate = headerSampleRate;
+        return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    public void setHeaderSampleRate(double headerSampleRate) {
+        this.headerSampleRate = headerSampleRate;
+    }
+
+    // called by the request threads. requestLine, referer and userAgent may be null,
+    // length is -1 when no body was sent, headerDump is null when the request wasn't sampled
+    public void log(String remoteAddress, String requestLine, int status, long length,
+                    String referer, String userAgent, CharSequence headerDump) {
+        Record record = new Record(System.currentTimeMillis(), remoteAddress, requestLine, status, length,
+                combined ? referer : null, combined ? userAgent : null,
+                headerDump == null || headerDump.length() == 0 ? null : headerDump.toString());
+        while (true) {
+            long claimed = tail.get();
+            if (claimed - head.get() >= ring.length()) {
+                if (!blockWhenFull || closed) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                // the ring is full, we wake up the writer and wait for it to make room
+                LockSupport.unpark(writer);
+                Thread.onSpinWait();
+                continue;
+            }
+            if (tail.compareAndSet(claimed, claimed + 1)) {
+                ring.set((int) claimed & mask, record);
+                return;
+            }
+        }
+    }
+
+    public long getDroppedRecords() {
+        return dropped.get();
+    }
+
+    // writes what's left in the ring and stops the writer
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        long lastFlush = System.nanoTime();
+        boolean unflushed = false;
+        while (true) {
+            boolean stopping = closed;
+            int written = 0;
+            try {
+                long position = head.get();
+                Record record;
+                // a slot that was claimed but isn't published yet stops the batch, it's taken next time
+                while ((record = ring.get((int) position & mask)) != null) {
+                    ring.set((int) position & mask, null);
+                    position++;
+                    head.set(position);
+                    line.setLength(0);
+                    format(record, line);
+                    write(line);
+                    written++;
+                }
+                if (written > 0) {
+                    unflushed = true;
+                }
+                long now = System.nanoTime();
+                if (unflushed && (stopping || now - lastFlush >= flushIntervalNanos)) {
+                    out.flush();
+                    unflushed = false;
+                    lastFlush = now;
+                }
+            } catch (IOException e) {
+                System.out.println("Error writing the access log: " + e);
+            }
+            if (stopping && head.get() == tail.get()) {
+                return;
+            }
+            if (written == 0) {
+                LockSupport.parkNanos(Math.max(1_000_000, Math.min(IDLE_PARK_NANOS, flushIntervalNanos)));
+            }
+        }
+    }
+
+    // the Common Log Format, optionally followed by the combined fields and the sampled headers:
+    // 127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] "GET /index.html HTTP/1.1" 200 2326
+    private void format(Record record, StringBuilder line) {
+        line.append(record.remoteAddress == null ? "-" : record.remoteAddress).append(" - - [");
+        COMMON_LOG_DATE.formatTo(Instant.ofEpochMilli(record.timestamp), line);
+        line.append("] \"").append(record.requestLine == null ? "-" : record.requestLine).append("\" ")
+                .append(record.status).append(' ');
+        if (record.length > 0) {
+            line.append(record.length);
+        } else {
+            line.append('-');
+        }
+        if (combined) {
+            line.append(" \"").append(record.referer == null ? "-" : record.referer)
+                    .append("\" \"").append(record.userAgent == null ? "-" : record.userAgent).append('"');
+        }
+        line.append('\n');
+        if (record.headerDump != null) {
+            line.append(record.headerDump);
+            if (line.charAt(line.length() - 1) != '\n') {
+                line.append('\n');
+            }
+        }
+    }
+
+    private void write(CharSequence line) throws IOException {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (file != null && fileSize + bytes.length > maxFileSize && fileSize > 0) {
+            rotate();
+        }
+        out.write(bytes);
+        fileSize += bytes.length;
+    }
+
+    // access.log -> access.log.1 -> access.log.2 ..., the oldest one is deleted
+    private void rotate() throws IOException {
+        out.close();
+        if (maxFiles > 0) {
+            Files.deleteIfExists(Paths.get(file + "." + maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path older = Paths.get(file + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(file);
+        }
+        openOutput();
+    }
+
+    private void openOutput() throws IOException {
+        if (file == null) {
+            // System.out is synchronized on every write, our own stream on the same descriptor isn't
+            out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), WRITE_BUFFER_SIZE);
+            return;
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        out = new BufferedOutputStream(new FileOutputStream(file.toFile(), true), WRITE_BUFFER_SIZE);
+        fileSize = Files.size(file);
+    }
+
+    private static class Record {
+        final long timestamp;
+        final String remoteAddress;
+        final String requestLine;
+        final int status;
+        final long length;
+        final String referer;
+        final String userAgent;
+        final String headerDump;
+
+        Record(long timestamp, String remoteAddress, String requestLine, int status, long length,
+               String referer, String userAgent, String headerDump) {
+            this.timestamp = timestamp;
+            this.remoteAddress = remoteAddress;
+            this.requestLine = requestLine;
+            this.status = status;
+            this.length = length;
+            this.referer = referer;
+            this.userAgent = userAgent;
+            this.headerDump = headerDump;
+        }
+    }
+}
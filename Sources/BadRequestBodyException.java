@@ -0,0 +1,9 @@
+import java.io.IOException;
+
+// thrown while reading a malformed request body (a broken chunked encoding), answered with 400.
+// like PayloadTooLargeException it's an IOException because it comes out of InputStream.read
+public class BadRequestBodyException extends IOException {
+    public BadRequestBodyException(String message) {
+        super(message);
+    }
+}
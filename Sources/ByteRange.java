@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// One range of a "Range: bytes=..." request header, with an inclusive start and end.
+public class ByteRange {
+    // a request with more ranges than this is answered with the whole file
+    public static final int MAX_RANGES = 16;
+
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() { return start; }
+    public long getEnd() { return end; }
+    public long getLength() { return end - start + 1; }
+
+    public String toContentRange(long fileSize) {
+        return "bytes " + start + "-" + end + "/" + fileSize;
+    }
+
+    // parses the value of a Range header for a file of the given size.
+    // returns null when the header is malformed or not in bytes, then it should be ignored (RFC 7233 section 3.1).
+    // returns an empty list when none of the ranges can be satisfied (416).
+    public static List<ByteRange> parse(String header, long fileSize) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if (first.isEmpty()) {
+                    // "-500" means the last 500 bytes
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength < 0) {
+                        return null;
+                    }
+                    if (suffixLength == 0 || fileSize == 0) {
+                        continue; // not satisfiable
+                    }
+                    start = Math.max(0, fileSize - suffixLength);
+                    end = fileSize - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start >= fileSize) {
+                        continue; // not satisfiable
+                    }
+                    end = Math.min(end, fileSize - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            ranges.add(new ByteRange(start, end));
+        }
+        return ranges;
+    }
+
+    // If-Range holds a validator of the version the client already has, the range is only sent
+    // if it still matches the file, otherwise the whole file is sent.
+    public static boolean isIfRangeSatisfied(String ifRange, long lastModified, String etag) {
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            return false; // weak tags can't be used for ranges (RFC 7233 section 3.2)
+        }
+        if (ifRange.startsWith("\"")) {
+            return !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        long date = Util.parseHttpDate(ifRange);
+        // HTTP dates have a resolution of one second
+        return date != -1 && date / 1000 == lastModified / 1000;
+    }
+}
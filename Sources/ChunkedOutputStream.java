@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Writes a body with the chunked transfer encoding (RFC 7230 section 4.1), so a response can be
+// streamed without knowing its length. Small writes are collected in a buffer that already has
+// room for the chunk header and the line end, so every chunk goes to the underlying stream in
+// one write. Whole chunks of big writes are sent straight from the caller's array.
+// close() writes the last chunk and the trailers but leaves the underlying stream open.
+public class ChunkedOutputStream extends OutputStream {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int HEADER_ROOM = 8 + 2; // up to 8 hex digits and "\r\n"
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final int chunkSize;
+    // [HEADER_ROOM bytes for the size line][chunkSize bytes of data][2 bytes for "\r\n"]
+    private final byte[] buffer;
+    private final byte[] directHeader; // the size line of chunks written straight from the caller's array
+    private int count; // data bytes in the buffer
+    private StringBuilder trailers;
+    private boolean closed;
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this.out = out;
+        this.chunkSize = chunkSize;
+        this.buffer = new byte[HEADER_ROOM + chunkSize + 2];
+        this.directHeader = new byte[HEADER_ROOM];
+        this.count = 0;
+    }
+
+    // trailer fields are sent after the last chunk, the response should list them in a Trailer header
+    public void addTrailer(String name, String value) {
+        if (trailers == null) {
+            trailers = new StringBuilder();
+        }
+        trailers.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunkSize) {
+            writeBufferedChunk();
+        }
+        buffer[HEADER_ROOM + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("the chunked stream is closed");
+        }
+        if (count == 0 && len >= chunkSize) {
+            // nothing is buffered, so whole chunks don't have to be copied
+            int headerStart = writeSizeLine(directHeader, HEADER_ROOM, chunkSize);
+            while (len >= chunkSize) {
+                out.write(directHeader, headerStart, HEADER_ROOM - headerStart);
+                out.write(b, off, chunkSize);
+                out.write(CRLF);
+                off += chunkSize;
+                len -= chunkSize;
+            }
+        }
+        while (len > 0) {
+            int copied = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, buffer, HEADER_ROOM + count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+            if (count == chunkSize) {
+                writeBufferedChunk();
+            }
+        }
+    }
+
+    // sends what's buffered as a chunk, so the client gets it now
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeBufferedChunk();
+        }
+        out.flush();
+    }
+
+    // the last chunk ("0\r\n"), the trailers and the empty line that ends the body
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (count > 0) {
+            writeBufferedChunk();
+        }
+        closed = true;
+        StringBuilder end = new StringBuilder("0\r\n");
+        if (trailers != null) {
+            end.append(trailers);
+        }
+        end.append("\r\n");
+        out.write(end.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private void writeBufferedChunk() throws IOException {
+        int start = writeSizeLine(buffer, HEADER_ROOM, count);
+        int end = HEADER_ROOM + count;
+        buffer[end] = '\r';
+        buffer[end + 1] = '\n';
+        out.write(buffer, start, end + 2 - start);
+        count = 0;
+    }
+
+    // writes "<size in hex>\r\n" so that it ends right before end, returns where it starts
+    private static int writeSizeLine(byte[] target, int end, int size) {
+        int position = end;
+        target[--position] = '\n';
+        target[--position] = '\r';
+        do {
+            target[--position] = HEX_DIGITS[size & 0xf];
+            size >>>= 4;
+        } while (size != 0);
+        return position;
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.zip.CRC32;
+
+// Validators (ETag and Last-Modified) and the If-None-Match / If-Modified-Since checks
+// that let a client reuse its cached copy and get a 304 Not Modified without a body.
+public class ConditionalRequest {
+
+    // a strong tag changes whenever the bytes change, it's computed once when the file is cached
+    public static String strongETag(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return "\"" + Long.toHexString(content.length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    // a weak tag for files we don't read to memory, it only depends on the size and modification time
+    public static String weakETag(long size, long lastModified) {
+        return "W/\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    // RFC 7232 section 6: If-None-Match is checked first and If-Modified-Since is ignored when it's present
+    public static boolean isNotModified(HTTPRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("if-none-match");
+        if (ifNoneMatch != null) {
+            return matchesAny(ifNoneMatch, etag);
+        }
+        String ifModifiedSince = request.getHeader("if-modified-since");
+        if (ifModifiedSince != null) {
+            long since = Util.parseHttpDate(ifModifiedSince);
+            // HTTP dates have a resolution of one second
+            return since != -1 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    // If-None-Match uses the weak comparison, so W/"x" matches "x"
+    private static boolean matchesAny(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        String opaqueTag = stripWeakPrefix(etag);
+        for (String tag : ifNoneMatch.split(",")) {
+            if (stripWeakPrefix(tag.trim()).equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeakPrefix(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+// Reloads config.ini while the server runs, when the file changes or when the process gets a
+// SIGHUP. ServerConfig.reload() swaps the snapshot atomically, requests that already started keep
+// the settings they began with and nothing waits for the reload. Afterwards we refresh the parts
+// that copied a setting when they were created.
+public class ConfigReloader {
+    // editors often write a file in several steps, we wait for them to finish
+    private static final long SETTLE_MILLIS = 200;
+
+    public static void start() {
+        Path configFile = Paths.get(ServerConfig.getConfigFilePath()).toAbsolutePath().normalize();
+        try {
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            // a file can't be watched by itself, we watch its directory and look for its name
+            configFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            Thread watcher = new Thread(() -> watch(watchService, configFile.getFileName()), "config-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            System.out.println("config: can't watch " + configFile + ", reload it with SIGHUP (" + e + ")");
+        }
+        handleHangupSignal();
+    }
+
+    private static void watch(WatchService watchService, Path fileName) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (fileName.equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    Thread.sleep(SETTLE_MILLIS);
+                    // the events of the settle time belong to the same change
+                    WatchKey pending = watchService.poll();
+                    if (pending != null) {
+                        pending.pollEvents();
+                        pending.reset();
+                    }
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // the server is shutting down
+        }
+    }
+
+    // sun.misc.Signal isn't a standard API, we look it up by reflection (like the virtual threads in
+    // MultiThreadedServer) and without it only the file watcher reloads the config
+    private static void handleHangupSignal() {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] {handlerClass},
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("handle")) {
+                            reload();
+                            return null;
+                        }
+                        // the Object methods
+                        switch (method.getName()) {
+                            case "equals": return proxy == args[0];
+                            case "hashCode": return System.identityHashCode(proxy);
+                            default: return "config reload on SIGHUP";
+                        }
+                    });
+            Object hangup = signalClass.getConstructor(String.class).newInstance("HUP");
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, hangup, handler);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            System.out.println("config: SIGHUP is not available on this platform (" + e + ")");
+        }
+    }
+
+    public static void reload() {
+        ServerConfig config = ServerConfig.reload();
+        if (config == null) {
+            return;
+        }
+        // the content types and the cached headers contain Cache-Control and the compression settings,
+        // they are built again
+        MimeTypes.init(config);
+        FileCache.instance.clear();
+        PathResolver.instance.clear(); // "/" maps to defaultPage
+        AccessLog.instance.setHeaderSampleRate(config.getLogHeaderSampleRate());
+        System.out.println("config: reloaded " + ServerConfig.getConfigFilePath());
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Blocking socket writes have no timeout in Java, so one thread checks the connections of the
+// blocking engine a few times per second and closes the socket of a write that is stuck (the
+// write then fails with an exception). It also closes idle keep-alive connections when the
+// server shuts down, so their threads don't wait in read() until keepAliveTimeout.
+public class ConnectionWatchdog {
+    private static final long CHECK_INTERVAL_MILLIS = 250;
+    private static final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private static Thread checker;
+
+    public static synchronized Watch watch(Socket socket) {
+        if (checker == null) {
+            checker = new Thread(ConnectionWatchdog::checkLoop, "connection-watchdog");
+            checker.setDaemon(true);
+            checker.start();
+        }
+        Watch watch = new Watch(socket);
+        watches.add(watch);
+        return watch;
+    }
+
+    // connections that wait for their next request are closed, the others close after their response
+    public static void closeIdleConnections() {
+        for (Watch watch : watches) {
+            if (watch.idle) {
+                watch.closeSocket();
+            }
+        }
+    }
+
+    private static void checkLoop() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Watch watch : watches) {
+                long deadline = watch.writeDeadline;
+                if (deadline != 0 && now - deadline > 0) {
+                    // the blocked write fails once the socket is closed, we only count it once
+                    watch.writeDeadline = 0;
+                    Metrics.instance.writeTimeout();
+                    watch.closeSocket();
+                }
+            }
+        }
+    }
+
+    // the state of one connection, owned by its ClientHandler
+    public static class Watch {
+        private final Socket socket;
+        private volatile long writeDeadline; // System.nanoTime() value, 0 while no write is running
+        private volatile boolean idle; // waiting for the next request
+        private long writeTimeout; // of the config snapshot of the current request, in milliseconds
+
+        private Watch(Socket socket) {
+            this.socket = socket;
+        }
+
+        // set for every request, so a config reload applies from the next one
+        public void setWriteTimeout(long writeTimeout) {
+            this.writeTimeout = writeTimeout;
+        }
+
+        // called before every write
+        public void startWrite() {
+            writeDeadline = writeTimeout > 0 ? System.nanoTime() + writeTimeout * 1_000_000 : 0;
+        }
+
+        public void endWrite() {
+            writeDeadline = 0;
+        }
+
+        public void setIdle(boolean idle) {
+            this.idle = idle;
+        }
+
+        public void unwatch() {
+            watches.remove(this);
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the connection is gone anyway
+            }
+        }
+    }
+}
+
+// arms the write timeout of the connection for every write to the socket
+class WatchedOutputStream extends FilterOutputStream {
+    private final ConnectionWatchdog.Watch watch;
+
+    WatchedOutputStream(OutputStream out, ConnectionWatchdog.Watch watch) {
+        super(out);
+        this.watch = watch;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        watch.startWrite();
+        try {
+            out.write(b);
+        } finally {
+            watch.endWrite();
+        }
+    }
+
+    // FilterOutputStream would write the array one byte at a time
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        watch.startWrite();
+        try {
+            out.write(b, off, len);
+        } finally {
+            watch.endWrite();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// In-memory cache of the files under the root directory.
+// Files up to cacheMaxEntrySize are kept with their precomputed headers, the least recently
+// used ones are evicted when the total size, compressed variants included, goes over cacheMaxBytes.
+// A WatchService on the root directory removes entries when files change, so a cache hit
+// doesn't touch the disk. If the watcher can't be started we compare the last modified time instead.
+public class FileCache {
+    public static FileCache instance;
+
+    private final long maxBytes;
+    private final long maxEntrySize;
+    // access ordered, so iteration starts with the least recently used entry
+    private final LinkedHashMap<Path, CachedFile> entries;
+    private long currentBytes;
+    private volatile boolean watching;
+
+    public static void init(String rootDirectory, long maxBytes, long maxEntrySize) {
+        instance = new FileCache(maxBytes, maxEntrySize);
+        if (maxBytes > 0) {
+            instance.startWatching(Path.of(rootDirectory));
+        }
+    }
+
+    public FileCache(long maxBytes, long maxEntrySize) {
+        this.maxBytes = maxBytes;
+        this.maxEntrySize = Math.min(maxEntrySize, maxBytes);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.currentBytes = 0;
+        this.watching = false;
+    }
+
+    // returns the cached file, loading it if needed.
+    // returns null when the file doesn't exist or is too big to be cached.
+    public CachedFile get(Path path) throws IOException {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        path = path.toAbsolutePath().normalize();
+        CachedFile cached;
+        synchronized (this) {
+            cached = entries.get(path);
+        }
+        if (cached != null) {
+            if (watching || cached.getLastModified() == lastModified(path)) {
+                Metrics.instance.cacheHit();
+                return cached;
+            }
+            invalidate(path);
+        }
+        Metrics.instance.cacheMiss();
+
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        long size = Files.size(path);
+        if (size > maxEntrySize) {
+            return null;
+        }
+        // the time is taken before reading, so a change during the read is noticed next time
+        long lastModified = lastModified(path);
+        byte[] content = Files.readAllBytes(path);
+        cached = new CachedFile(content, MimeTypes.instance.lookup(path), lastModified, ConditionalRequest.strongETag(content));
+        loadPrecompressed(path, size, cached);
+        put(path, cached);
+        return cached;
+    }
+
+    // a "file.gz" next to the file that isn't older than it is used as the gzip variant, when it's
+    // smaller than the file
+    private void loadPrecompressed(Path path, long size, CachedFile cached) throws IOException {
+        Path precompressed = Path.of(path + ".gz");
+        if (Files.isRegularFile(precompressed) && Files.size(precompressed) < size
+                && lastModified(precompressed) >= cached.getLastModified()) {
+            cached.setVariant(ContentEncoding.GZIP, Files.readAllBytes(precompressed));
+        }
+    }
+
+    private synchronized void put(Path path, CachedFile file) {
+        CachedFile previous = entries.put(path, file);
+        if (previous != null) {
+            currentBytes -= previous.getCachedBytes();
+        }
+        currentBytes += file.getCachedBytes();
+        file.setCache(this, path);
+        evict();
+    }
+
+    // a compressed variant was created after the file was cached
+    synchronized void addVariantBytes(Path path, CachedFile file, long bytes) {
+        file.variantBytes += bytes;
+        if (entries.get(path) == file) {
+            currentBytes += bytes;
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Path, CachedFile>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Path, CachedFile> eldest = iterator.next();
+            currentBytes -= eldest.getValue().getCachedBytes();
+            iterator.remove();
+        }
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    // removes the path and everything under it (when a directory changed)
+    public synchronized void invalidate(Path path) {
+        path = path.toAbsolutePath().normalize();
+        String name = path.toString();
+        if (name.endsWith(".gz")) {
+            // the precompressed variant of another file changed
+            invalidate(Path.of(name.substring(0, name.length() - 3)));
+        }
+        Iterator<Map.Entry<Path, CachedFile>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, CachedFile> entry = iterator.next();
+            if (entry.getKey().startsWith(path)) {
+                currentBytes -= entry.getValue().getCachedBytes();
+                iterator.remove();
+            }
+        }
+        // the big files aren't cached here, but FileSender may have mapped them
+        FileSender.invalidate(path);
+    }
+
+    // while the watcher runs, changes on the disk reach the cache (and PathResolver) without polling
+    public boolean isWatching() {
+        return watching;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private void startWatching(Path root) {
+        try {
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            registerTree(watchService, root.toAbsolutePath().normalize());
+            Thread watcher = new Thread(() -> watch(watchService), "file-cache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+            watching = true;
+        } catch (IOException e) {
+            System.out.println("File cache can't watch the root directory, checking modification times instead (" + e + ")");
+        }
+    }
+
+    private static void registerTree(WatchService watchService, Path directory) throws IOException {
+        try (Stream<Path> directories = Files.walk(directory)) {
+            for (Path dir : (Iterable<Path>) directories.filter(Files::isDirectory)::iterator) {
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+    }
+
+    private void watch(WatchService watchService) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        clear(); // we lost events, so we don't know what changed
+                        PathResolver.instance.clear();
+                        continue;
+                    }
+                    Path changed = directory.resolve((Path) event.context());
+                    if (ParamsInfoWriter.isTemporaryFile(changed)) {
+                        continue; // the page is invalidated by its writer once it's moved in place
+                    }
+                    invalidate(changed);
+                    PathResolver.instance.invalidate(changed);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        try {
+                            registerTree(watchService, changed);
+                        } catch (IOException e) {
+                            System.out.println("File cache can't watch " + changed + ": " + e);
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // the watcher stops, make sure we don't serve entries that are never invalidated
+            watching = false;
+        }
+    }
+}
+
+// a cached file with the headers that don't change between responses.
+// compressed variants are created the first time a client asks for them and kept with the file,
+// the cache counts their bytes in cacheMaxBytes together with the file's.
+class CachedFile {
+    // marks an encoding that isn't worth using for this file
+    private static final EncodedVariant NOT_COMPRESSIBLE = new EncodedVariant(null, null, null);
+
+    private final byte[] content;
+    private final MimeType mimeType;
+    private final long lastModified;
+    private final String etag;
+    private final byte[] headers;
+    private final ConcurrentHashMap<String, EncodedVariant> variants;
+    // the cache that holds the file and its path there, null while (or when) it isn't cached
+    private volatile FileCache cache;
+    private volatile Path cachePath;
+    long variantBytes; // guarded by the cache once the file is in it
+
+    CachedFile(byte[] content, MimeType mimeType, long lastModified, String etag) {
+        this.content = content;
+        this.mimeType = mimeType;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.headers = buildHeaders(mimeType, content.length, lastModified, etag, null);
+        this.variants = new ConcurrentHashMap<>();
+    }
+
+    // the headers of a 200 response for a file, contentEncoding is null for the identity encoding.
+    // they are encoded once, so a cached file is answered by copying them after the status line
+    static byte[] buildHeaders(MimeType mimeType, long length, long lastModified, String etag, String contentEncoding) {
+        StringBuilder headers = new StringBuilder();
+        headers.append("Content-Type: ").append(mimeType.getContentType()).append("\r\n");
+        headers.append("Content-Length: ").append(length).append("\r\n");
+        if (contentEncoding != null) {
+            headers.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+        }
+        if (contentEncoding != null || mimeType.isCompressible()) {
+            // caches must not give a compressed response to a client that didn't ask for it
+            headers.append("Vary: Accept-Encoding\r\n");
+        }
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("ETag: ").append(etag).append("\r\n");
+        headers.append("Last-Modified: ").append(Util.formatHttpDate(lastModified)).append("\r\n");
+        int maxAge = mimeType.getCacheMaxAge();
+        if (maxAge >= 0) {
+            headers.append("Cache-Control: max-age=").append(maxAge).append("\r\n");
+        }
+        return headers.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // returns null when the file should be sent without this encoding. minSize is the
+    // compressionMinSize of the request, a reload clears the cache when it changes
+    EncodedVariant getVariant(String encoding, int minSize) {
+        EncodedVariant variant = variants.computeIfAbsent(encoding, e -> compress(e, minSize));
+        return variant == NOT_COMPRESSIBLE ? null : variant;
+    }
+
+    // only called before the file is put in the cache, which then counts the variant
+    void setVariant(String encoding, byte[] encodedContent) {
+        variants.put(encoding, createVariant(encoding, encodedContent));
+        variantBytes += encodedContent.length;
+    }
+
+    void setCache(FileCache cache, Path path) {
+        this.cachePath = path;
+        this.cache = cache;
+    }
+
+    // what the file takes in the cache, called with the cache's lock
+    long getCachedBytes() {
+        return content.length + variantBytes;
+    }
+
+    private EncodedVariant compress(String encoding, int minSize) {
+        if (!mimeType.isCompressible() || content.length < minSize) {
+            return NOT_COMPRESSIBLE;
+        }
+        try {
+            byte[] compressed = ContentEncoding.compress(content, encoding);
+            if (compressed.length >= content.length) {
+                return NOT_COMPRESSIBLE;
+            }
+            EncodedVariant variant = createVariant(encoding, compressed);
+            FileCache owner = cache;
+            if (owner != null) {
+                owner.addVariantBytes(cachePath, this, compressed.length);
+            }
+            return variant;
+        } catch (IOException e) {
+            return NOT_COMPRESSIBLE;
+        }
+    }
+
+    private EncodedVariant createVariant(String encoding, byte[] encodedContent) {
+        String variantETag = ContentEncoding.variantETag(etag, encoding);
+        return new EncodedVariant(encodedContent, variantETag,
+                buildHeaders(mimeType, encodedContent.length, lastModified, variantETag, encoding));
+    }
+
+    public byte[] getContent() { return content; }
+    public MimeType getMimeType() { return mimeType; }
+    public long getLastModified() { return lastModified; }
+    public String getETag() { return etag; }
+    public byte[] getHeaders() { return headers; }
+}
+
+// the file compressed with one content encoding
+class EncodedVariant {
+    private final byte[] content;
+    private final String etag;
+    private final byte[] headers;
+
+    EncodedVariant(byte[] content, String etag, byte[] headers) {
+        this.content = content;
+        this.etag = etag;
+        this.headers = headers;
+    }
+
+    public byte[] getContent() { return content; }
+    public String getETag() { return etag; }
+    public byte[] getHeaders() { return headers; }
+}
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Sends (part of) a file as a response body without loading it to the heap.
+// With a socket channel the kernel copies the file directly to the socket (FileChannel.transferTo).
+// With mappedFiles=true big files are mapped once and every download writes from the same mapping.
+public class FileSender {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    // a blocking transferTo only returns when everything was sent, smaller calls let the write timeout see progress
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+    // a mapping keeps the file's pages (and a deleted file's disk space) until it's dropped
+    private static final int MAX_MAPPED_FILES = 256;
+    private static final ConcurrentHashMap<Path, MappedFile> mappedFiles = new ConcurrentHashMap<>();
+
+    // writes count bytes of the file, starting at position. mapFile is the mappedFiles setting of the request.
+    // watch is the write timeout of the connection when we write to its channel directly, or null
+    public static void send(Path path, long position, long count, boolean mapFile, OutputStream out,
+                            WritableByteChannel channel, ConnectionWatchdog.Watch watch) throws IOException {
+        // the headers must reach the socket before we write to it directly
+        out.flush();
+
+        ByteBuffer mapped = mapFile ? mappedSlice(path, position, count) : null;
+        if (out instanceof NioResponse) {
+            // the event loop writes the file when the socket is ready
+            NioResponse response = (NioResponse) out;
+            if (mapped != null) {
+                response.addBuffer(mapped);
+            } else {
+                response.addFile(path, position, count);
+            }
+            return;
+        }
+
+        // bytes written to out are counted by the stream, the ones we write to the socket channel are counted here
+        boolean countBytes = channel != null;
+        if (channel == null) {
+            channel = Channels.newChannel(out);
+        }
+        if (mapped != null) {
+            while (mapped.hasRemaining()) {
+                int limit = mapped.limit();
+                mapped.limit((int) Math.min(limit, mapped.position() + TRANSFER_SIZE));
+                startWrite(watch);
+                try {
+                    int written = channel.write(mapped);
+                    if (countBytes) {
+                        Metrics.instance.addBytesOut(written);
+                    }
+                } finally {
+                    endWrite(watch);
+                    mapped.limit(limit);
+                }
+            }
+            return;
+        }
+        if (channel instanceof SocketChannel) {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                long end = position + count;
+                while (position < end) {
+                    long sent;
+                    startWrite(watch);
+                    try {
+                        sent = file.transferTo(position, Math.min(end - position, TRANSFER_SIZE), channel);
+                    } finally {
+                        endWrite(watch);
+                    }
+                    if (sent == 0 && position >= file.size()) {
+                        throw new IOException("file became shorter while sending it: " + path);
+                    }
+                    position += sent;
+                    Metrics.instance.addBytesOut(sent);
+                }
+            }
+            return;
+        }
+
+        // no socket channel: we still only hold one small buffer in memory
+        try (InputStream in = Files.newInputStream(path)) {
+            in.skipNBytes(position);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            long remaining = count;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("file became shorter while sending it: " + path);
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    private static void startWrite(ConnectionWatchdog.Watch watch) {
+        if (watch != null) {
+            watch.startWrite();
+        }
+    }
+
+    private static void endWrite(ConnectionWatchdog.Watch watch) {
+        if (watch != null) {
+            watch.endWrite();
+        }
+    }
+
+    // returns a buffer over the requested part of the shared mapping of the file,
+    // or null if the file is too big to be mapped
+    private static ByteBuffer mappedSlice(Path path, long position, long count) throws IOException {
+        long size = Files.size(path);
+        if (size > Integer.MAX_VALUE) {
+            return null;
+        }
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        MappedFile mappedFile = mappedFiles.get(path);
+        if (mappedFile == null || mappedFile.size != size || mappedFile.lastModified != lastModified) {
+            // the old mapping is released by the garbage collector when no download uses it anymore
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                mappedFile = new MappedFile(file.map(FileChannel.MapMode.READ_ONLY, 0, size), size, lastModified);
+            }
+            if (mappedFiles.size() >= MAX_MAPPED_FILES) {
+                // like the path cache, we start over instead of keeping every file that was ever sent
+                mappedFiles.clear();
+            }
+            mappedFiles.put(path, mappedFile);
+        }
+        // every download gets its own position and limit over the same memory
+        ByteBuffer slice = mappedFile.buffer.duplicate();
+        slice.position((int) position);
+        slice.limit((int) (position + count));
+        return slice.slice();
+    }
+
+    // drops the mappings of the path and everything under it, FileCache calls it when files change.
+    // downloads that still write from a mapping keep it until they are done
+    public static void invalidate(Path path) {
+        mappedFiles.keySet().removeIf(mappedPath -> mappedPath.startsWith(path));
+    }
+
+    private static class MappedFile {
+        final MappedByteBuffer buffer;
+        final long size;
+        final long lastModified;
+
+        MappedFile(MappedByteBuffer buffer, long size, long lastModified) {
+            this.buffer = buffer;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
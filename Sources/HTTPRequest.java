@@ -1,163 +1,312 @@
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class HTTPRequest {
+    private static final int INITIAL_HEADER_CAPACITY = 16;
+
+    private String requestLine; // as received, for the access log
+    private long startTime; // System.nanoTime() when the request line was available
     private String method; // we support GET, POST, HEAD, TRACE
     private String requestedPage;
-    private Map<String, String> headers; // The header names are stored as lowercase.
-    private byte[] body;
+    private String version;
+    // The header names are stored as lowercase. A request has few headers, so searching
+    // these arrays is cheaper than building a HashMap for every request.
+    private String[] headerNames;
+    private String[] headerValues;
+    private int headerCount;
+    private Map<String, String> headers; // only built when someone asks for all the headers
+    private RequestBody body;
+    private boolean bodyTooLarge; // the Content-Length is over maxBodySize
     private Map<String, String> parameters;
 
     //Constructor
-    public HTTPRequest(StringBuilder log, BufferedReader reader) throws IOException, BadRequestException {
+    public HTTPRequest(StringBuilder log, RequestReader reader, ServerConfig config) throws IOException, BadRequestException {
+        this.requestLine = "";
         this.method = "";
         this.requestedPage = "";
-        this.headers = new HashMap<>();
-        this.body = new byte[0];
+        this.version = "";
+        this.headerNames = new String[INITIAL_HEADER_CAPACITY];
+        this.headerValues = new String[INITIAL_HEADER_CAPACITY];
+        this.headerCount = 0;
+        this.body = null;
+        this.bodyTooLarge = false;
         this.parameters = new HashMap<>();
 
-        // we read the first line to get the request type and path
-        String line = reader.readLine();
-        if (line == null) {
-            throw new BadRequestException();
+        reader.startHead(config.getRequestTimeout());
+        byte[] buffer;
+        int lineStart;
+        int lineEnd;
+        // we read the first line to get the request type and path.
+        // empty lines between pipelined requests are skipped (RFC 7230 section 3.5)
+        while (true) {
+            lineEnd = reader.fillLine(config.getMaxRequestLineSize());
+            if (lineEnd == -1) {
+                // the client closed the connection before sending another request
+                throw new EOFException();
+            }
+            buffer = reader.getBuffer();
+            lineStart = reader.getPosition();
+            if (contentEnd(buffer, lineStart, lineEnd) > lineStart) {
+                break;
+            }
+            reader.consumeLine(lineEnd);
         }
-        //logMessage("> " + line);
-        parseRequestLine(line);
-        log.append("> " + line);
-        log.append("\n");
+        this.startTime = System.nanoTime();
+        int end = contentEnd(buffer, lineStart, lineEnd);
+        parseRequestLine(buffer, lineStart, end);
+        appendLogLine(log, buffer, lineStart, end);
+        reader.consumeLine(lineEnd);
+
         // read the rest of the headers
-        while ((line = reader.readLine()) != null && !line.isEmpty()) {
-            //logMessage("> " + line);
-            log.append("> " + line).append("\n");
-            parseHeaderLine(line);
+        int headerBytes = 0;
+        while (true) {
+            lineEnd = reader.fillLine(config.getMaxHeaderSize() - headerBytes);
+            if (lineEnd == -1) {
+                throw new BadRequestException();
+            }
+            buffer = reader.getBuffer();
+            lineStart = reader.getPosition();
+            end = contentEnd(buffer, lineStart, lineEnd);
+            headerBytes += lineEnd - lineStart + 1;
+            if (end == lineStart) {
+                reader.consumeLine(lineEnd);
+                break;
+            }
+            if (headerCount >= config.getMaxHeaderCount()) {
+                throw new BadRequestException();
+            }
+            appendLogLine(log, buffer, lineStart, end);
+            parseHeaderLine(buffer, lineStart, end);
+            reader.consumeLine(lineEnd);
         }
-        
-        readBody(reader);
+        reader.endHead();
+
+        createBody(reader, config);
+    }
+
+    // the end of the line without the line terminator ("\r\n", or just "\n")
+    static int contentEnd(byte[] buffer, int lineStart, int lineEnd) {
+        if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+            return lineEnd - 1;
+        }
+        return lineEnd;
     }
-    
-    private void readBody(BufferedReader reader) throws IOException, BadRequestException {
-        // Parse Content-Length
-        int contentLength = 0;
 
-        String transfer_encoding = headers.get("transfer-encoding");
+    // log is null when the request isn't sampled for the header dump of the access log
+    private static void appendLogLine(StringBuilder log, byte[] buffer, int start, int end) {
+        if (log == null) {
+            return;
+        }
+        log.append("> ");
+        for (int i = start; i < end; i++) {
+            log.append((char) (buffer[i] & 0xff));
+        }
+        log.append("\n");
+    }
+
+    // the body isn't read here, the handler reads it from the RequestBody stream while it arrives
+    private void createBody(RequestReader reader, ServerConfig config) throws BadRequestException {
+        long maxBodySize = config.getMaxBodySize();
+        int maxLineSize = config.getMaxRequestLineSize();
+        String transfer_encoding = getHeader("transfer-encoding");
         if (transfer_encoding != null) {
-            if (headers.get("content-length") != null) {
+            if (getHeader("content-length") != null) {
                 throw new BadRequestException();
             }
             if (!transfer_encoding.equals("chunked")) {
                 throw new BadRequestException();
             }
-            readChunkedBody(reader);
+            this.body = new RequestBody(reader, true, 0, maxBodySize, maxLineSize);
             return;
         }
 
+        // Parse Content-Length
+        long contentLength;
         try {
-            contentLength = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+            contentLength = Long.parseLong(getHeaderOrDefault("content-length", "0").trim());
         } catch (NumberFormatException e) {
             throw new BadRequestException();
         }
-
-        char[] buffer = new char[contentLength];
-        reader.read(buffer, 0, contentLength);
-
-        this.body = Util.charArrayToBytes(buffer);
+        if (contentLength < 0) {
+            throw new BadRequestException();
+        }
+        this.bodyTooLarge = contentLength > maxBodySize;
+        this.body = new RequestBody(reader, false, contentLength, maxBodySize, maxLineSize);
     }
-    
-    private void readChunkedBody(BufferedReader reader) throws IOException, BadRequestException{
-        ByteArrayOutputStream bodyBuilder = new ByteArrayOutputStream();
 
-        while (true) {
-            String line = reader.readLine();
-            if (line.length() == 0) {
-                break;
-            }
+    private void parseRequestLine(byte[] buffer, int start, int end) throws BadRequestException {
+        //we need to split to 3 parts
+        int firstSpace = indexOf(buffer, start, end, (byte) ' ');
+        int secondSpace = firstSpace == -1 ? -1 : indexOf(buffer, firstSpace + 1, end, (byte) ' ');
+        if (firstSpace <= start || secondSpace <= firstSpace + 1 || secondSpace == end - 1
+                || indexOf(buffer, secondSpace + 1, end, (byte) ' ') != -1) {
+            throw new BadRequestException();
+        }
 
-            int chunkLength = 0;
-            try {
-                chunkLength = Integer.parseInt(line, 16);
-            } catch (NumberFormatException e) {
-                throw new BadRequestException();
-            }
+        this.requestLine = latin1(buffer, start, end);
+        this.method = knownMethod(buffer, start, firstSpace);
+        this.version = knownVersion(buffer, secondSpace + 1, end);
+        if (!version.startsWith("HTTP/1.")) {
+            throw new BadRequestException();
+        }
 
-            char[] chunk = new char[chunkLength];
-            reader.read(chunk, 0, chunkLength);
-            reader.readLine(); // Skip the '\r\n' after the chunk
-            bodyBuilder.write(Util.charArrayToBytes(chunk));
+        // Split the requested page and query string
+        int questionMark = indexOf(buffer, firstSpace + 1, secondSpace, (byte) '?');
+        int pathEnd = questionMark == -1 ? secondSpace : questionMark;
+        // the path as the client sent it, PathResolver decodes it and keeps it inside the root
+        this.requestedPage = latin1(buffer, firstSpace + 1, pathEnd);
 
-            if (chunkLength == 0) {
-                break;
-            }
+        // Parse query string for GET request
+        if (questionMark != -1) {
+            this.parameters = Util.parseParameters(latin1(buffer, questionMark + 1, secondSpace));
         }
+    }
 
-        this.body = bodyBuilder.toByteArray();
+    // the common methods and versions are returned as constants, so we don't create a string for them
+    private static String knownMethod(byte[] buffer, int start, int end) {
+        String[] methods = {"GET", "POST", "HEAD", "TRACE"};
+        for (String method : methods) {
+            if (equalsAscii(buffer, start, end, method)) {
+                return method;
+            }
+        }
+        return latin1(buffer, start, end);
     }
 
-    private void parseRequestLine(String line) throws BadRequestException {
-        //we need to split to 3 parts
-        String[] parts = line.split(" ");
+    private static String knownVersion(byte[] buffer, int start, int end) {
+        if (equalsAscii(buffer, start, end, "HTTP/1.1")) {
+            return "HTTP/1.1";
+        }
+        if (equalsAscii(buffer, start, end, "HTTP/1.0")) {
+            return "HTTP/1.0";
+        }
+        return latin1(buffer, start, end);
+    }
 
-        if (parts.length != 3) {
+    private void parseHeaderLine(byte[] buffer, int start, int end) throws BadRequestException {
+        int colon = indexOf(buffer, start, end, (byte) ':');
+        if (colon <= start) {
             throw new BadRequestException();
         }
+        // no whitespace is allowed between the name and the colon (RFC 7230 section 3.2.4)
+        char[] name = new char[colon - start];
+        for (int i = start; i < colon; i++) {
+            byte b = buffer[i];
+            if (b == ' ' || b == '\t') {
+                throw new BadRequestException();
+            }
+            name[i - start] = (char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff);
+        }
+        int valueStart = colon + 1;
+        int valueEnd = end;
+        while (valueStart < valueEnd && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && (buffer[valueEnd - 1] == ' ' || buffer[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
 
-        this.method = parts[0];
-        // Split the requested page and query string
-        String[] pathAndQuery = parts[1].split("\\?");
-        this.requestedPage = isRequestGoingOutsideRoot(pathAndQuery[0]) ;
-
-        // Parse query string for GET request
-        if (pathAndQuery.length > 1) {
-            this.parameters = Util.parseParameters(pathAndQuery[1]);
+        if (headerCount == headerNames.length) {
+            headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+            headerValues = Arrays.copyOf(headerValues, headerCount * 2);
         }
+        headerNames[headerCount] = new String(name);
+        headerValues[headerCount] = latin1(buffer, valueStart, valueEnd);
+        headerCount++;
     }
 
-    //check that we don't go out of the root. if we found .. we just ignore it and remove it from the path
-    private String isRequestGoingOutsideRoot(String path) {
-        String[] parts = path.split("[/\\\\]");
-        LinkedList<String> newPath = new LinkedList<>();
-        for (String part : parts) {
-            if (part.equals("..") && !newPath.isEmpty()) {
-                newPath.pollLast();
-            } else {
-                newPath.add(part);
+    private static int indexOf(byte[] buffer, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == value) {
+                return i;
             }
         }
-        return "/" + String.join("/", newPath);
+        return -1;
     }
 
-    private void parseHeaderLine(String line) throws BadRequestException {
-        String[] parts = line.split(": ");
-        if (parts.length != 2) {
-            throw new BadRequestException();
+    private static boolean equalsAscii(byte[] buffer, int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (buffer[start + i] != value.charAt(i)) {
+                return false;
+            }
         }
-        headers.put(parts[0].trim().toLowerCase(), parts[1].trim());
+        return true;
+    }
+
+    // the request line and headers are ISO-8859-1 (RFC 7230 section 3.2.4)
+    private static String latin1(byte[] buffer, int start, int end) {
+        return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
     }
 
     // Getters for all the properties
+    public String getRequestLine() {
+        return requestLine;
+    }
+    public long getStartTime() {
+        return startTime;
+    }
     public String getMethod() {
         return method;
     }
     public String getRequestedPage() {
         return requestedPage;
     }
+    public String getVersion() {
+        return version;
+    }
+    // HTTP/1.1 connections are persistent unless the client asks to close,
+    // HTTP/1.0 connections are closed unless the client asks for keep-alive.
+    public boolean isKeepAlive() {
+        String connection = getHeaderOrDefault("connection", "").toLowerCase();
+        if (version.equals("HTTP/1.0")) {
+            return connection.contains("keep-alive");
+        }
+        return !connection.contains("close");
+    }
     public int getContentLength() {
         try {
-            return Integer.parseInt(headers.getOrDefault("content-length", "0"));
+            return Integer.parseInt(getHeaderOrDefault("content-length", "0"));
         } catch (NumberFormatException e) {
             return 0;
         }
     }
-    public byte[] getBody() {
+    public RequestBody getBody() {
         return body;
     }
+    public boolean isBodyTooLarge() {
+        return bodyTooLarge;
+    }
     public Map<String, String> getParameters() {
         return parameters;
     }
+    // name must be lowercase. when a header is repeated the last value is returned
+    public String getHeader(String name) {
+        for (int i = headerCount - 1; i >= 0; i--) {
+            if (headerNames[i].equals(name)) {
+                return headerValues[i];
+            }
+        }
+        return null;
+    }
+    public String getHeaderOrDefault(String name, String defaultValue) {
+        String value = getHeader(name);
+        return value == null ? defaultValue : value;
+    }
     public Map<String, String> getHeaders() {
+        if (headers == null) {
+            headers = new LinkedHashMap<>();
+            for (int i = 0; i < headerCount; i++) {
+                headers.put(headerNames[i], headerValues[i]);
+            }
+        }
         return headers;
     }
 
@@ -0,0 +1,270 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Counters and latency histograms of the server, served in the Prometheus text format at metricsPath.
+// Everything is recorded with LongAdders, which keep a cell per contending thread,
+// so recording doesn't make the request threads wait for each other.
+public class Metrics {
+    public static Metrics instance;
+
+    // the methods we serve get their own labels, everything else is counted as "OTHER"
+    private static final String[] METHODS = {"GET", "POST", "HEAD", "TRACE"};
+
+    private final ExecutorService threadPool;
+    private final ConcurrentHashMap<String, LongAdder> requests; // "method status" -> count
+    private final ConcurrentHashMap<String, LatencyHistogram> requestDurations; // by method
+    private final LatencyHistogram parseDuration;
+    private final LatencyHistogram handleDuration;
+    private final LatencyHistogram writeDuration;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder cacheHits;
+    private final LongAdder cacheMisses;
+    private final LongAdder acceptedConnections;
+    private final LongAdder[] acceptedByAcceptor;
+    private final List<IntSupplier> eventLoopConnections; // the open connections of every NIO event loop
+    private final LongAdder rejectedConnections;
+    private final LongAdder shedRequests;
+    private final LongAdder requestTimeouts;
+    private final LongAdder writeTimeouts;
+
+    public static void init(ExecutorService threadPool) {
+        instance = new Metrics(threadPool);
+    }
+
+    public Metrics(ExecutorService threadPool) {
+        this.threadPool = threadPool;
+        this.requests = new ConcurrentHashMap<>();
+        this.requestDurations = new ConcurrentHashMap<>();
+        this.parseDuration = new LatencyHistogram();
+        this.handleDuration = new LatencyHistogram();
+        this.writeDuration = new LatencyHistogram();
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
+        this.cacheHits = new LongAdder();
+        this.cacheMisses = new LongAdder();
+        this.acceptedConnections = new LongAdder();
+        this.acceptedByAcceptor = new LongAdder[ServerConfig.instance.getAcceptorThreads()];
+        for (int i = 0; i < acceptedByAcceptor.length; i++) {
+            acceptedByAcceptor[i] = new LongAdder();
+        }
+        this.eventLoopConnections = new CopyOnWriteArrayList<>();
+        this.rejectedConnections = new LongAdder();
+        this.shedRequests = new LongAdder();
+        this.requestTimeouts = new LongAdder();
+        this.writeTimeouts = new LongAdder();
+    }
+
+    // method is null when the request couldn't be parsed, durationNanos is -1 when it's unknown
+    public void recordRequest(String method, int status, long durationNanos) {
+        String label = methodLabel(method);
+        requests.computeIfAbsent(label + " " + status, key -> new LongAdder()).increment();
+        if (durationNanos >= 0) {
+            requestDurations.computeIfAbsent(label, key -> new LatencyHistogram()).record(durationNanos);
+        }
+    }
+
+    // the time from the request line being available until the headers are parsed
+    public void recordParse(long nanos) { parseDuration.record(nanos); }
+    // the time the handler took. for the blocking engine this includes writing the response
+    public void recordHandle(long nanos) { handleDuration.record(nanos); }
+    // the time from a response being ready until the event loop wrote it (NIO engine only)
+    public void recordWrite(long nanos) { writeDuration.record(nanos); }
+    public void addBytesIn(long bytes) { bytesIn.add(bytes); }
+    public void addBytesOut(long bytes) { bytesOut.add(bytes); }
+    public void cacheHit() { cacheHits.increment(); }
+    public void cacheMiss() { cacheMisses.increment(); }
+    public void connectionAccepted(int acceptor) {
+        acceptedConnections.increment();
+        acceptedByAcceptor[acceptor].increment();
+    }
+    public void registerEventLoop(IntSupplier connections) { eventLoopConnections.add(connections); }
+    public void connectionRejected() { rejectedConnections.increment(); }
+    // work that waited in the queue for longer than maxQueueTime
+    public void requestShed() { shedRequests.increment(); }
+    public void requestTimeout() { requestTimeouts.increment(); }
+    public void writeTimeout() { writeTimeouts.increment(); }
+
+    private static String methodLabel(String method) {
+        if (method == null) {
+            return "NONE";
+        }
+        for (String known : METHODS) {
+            if (known.equals(method)) {
+                return known;
+            }
+        }
+        return "OTHER";
+    }
+
+    // the Prometheus text exposition format, version 0.0.4
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+
+        header(out, "http_requests_total", "counter", "Requests by method and status code.");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(requests).entrySet()) {
+            int space = entry.getKey().indexOf(' ');
+            out.append("http_requests_total{method=\"").append(entry.getKey(), 0, space)
+                    .append("\",status=\"").append(entry.getKey(), space + 1, entry.getKey().length())
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        header(out, "http_request_duration_seconds", "histogram", "Time from the request line until the response was handled, by method.");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(requestDurations).entrySet()) {
+            entry.getValue().writeTo(out, "http_request_duration_seconds", "method=\"" + entry.getKey() + "\"");
+        }
+
+        header(out, "http_phase_duration_seconds", "histogram", "Time spent in each phase of a request.");
+        parseDuration.writeTo(out, "http_phase_duration_seconds", "phase=\"parse\"");
+        handleDuration.writeTo(out, "http_phase_duration_seconds", "phase=\"handle\"");
+        writeDuration.writeTo(out, "http_phase_duration_seconds", "phase=\"write\"");
+
+        counter(out, "http_received_bytes_total", "Bytes of requests read from clients.", bytesIn.sum());
+        counter(out, "http_sent_bytes_total", "Bytes of responses written to clients.", bytesOut.sum());
+        counter(out, "file_cache_hits_total", "File cache lookups that found the file in memory.", cacheHits.sum());
+        counter(out, "file_cache_misses_total", "File cache lookups that had to go to the disk.", cacheMisses.sum());
+        counter(out, "connections_accepted_total", "Accepted client connections.", acceptedConnections.sum());
+        // how evenly the acceptors (and with reusePort the kernel) spread the new connections
+        header(out, "connections_accepted_by_acceptor_total", "counter", "Accepted client connections by acceptor thread.");
+        for (int i = 0; i < acceptedByAcceptor.length; i++) {
+            out.append("connections_accepted_by_acceptor_total{acceptor=\"").append(i).append("\"} ")
+                    .append(acceptedByAcceptor[i].sum()).append('\n');
+        }
+        if (!eventLoopConnections.isEmpty()) {
+            header(out, "nio_event_loop_connections", "gauge", "Connections that are open now by NIO event loop.");
+            for (int i = 0; i < eventLoopConnections.size(); i++) {
+                out.append("nio_event_loop_connections{loop=\"").append(i).append("\"} ")
+                        .append(eventLoopConnections.get(i).getAsInt()).append('\n');
+            }
+        }
+        counter(out, "connections_rejected_total", "Connections and requests refused with 503 because of maxConnections or a full queue.", rejectedConnections.sum());
+        counter(out, "requests_shed_total", "Connections and requests answered with 503 because they waited longer than maxQueueTime.", shedRequests.sum());
+        counter(out, "request_timeouts_total", "Requests whose head didn't arrive within requestTimeout.", requestTimeouts.sum());
+        counter(out, "write_timeouts_total", "Connections closed because a write made no progress within writeTimeout.", writeTimeouts.sum());
+        counter(out, "access_log_dropped_records_total", "Access log records dropped because the log buffer was full.", AccessLog.instance.getDroppedRecords());
+        gauge(out, "connections_active", "Connections that are open now.", MultiThreadedServer.activeConnections.get());
+        gauge(out, "file_cache_bytes", "Bytes of file content held by the file cache.", FileCache.instance.getCurrentBytes());
+
+        // the virtual thread executor has no queue and no fixed set of threads
+        if (threadPool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) threadPool;
+            gauge(out, "thread_pool_queue_depth", "Tasks waiting for a pool thread.", pool.getQueue().size());
+            gauge(out, "thread_pool_active_threads", "Pool threads running a task.", pool.getActiveCount());
+            gauge(out, "thread_pool_threads", "Threads in the pool.", pool.getPoolSize());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
+
+// A log-linear histogram of durations in microseconds, in the style of HdrHistogram:
+// every power of two is split in SUB_BUCKETS buckets of the same width, so the relative
+// error stays the same from microseconds to seconds with a small fixed number of buckets.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 1;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 25; // 2^25 microseconds is about 33 seconds, slower requests go to +Inf
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets;
+    private final LongAdder overflow;
+    private final LongAdder sumNanos;
+
+    LatencyHistogram() {
+        buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        overflow = new LongAdder();
+        sumNanos = new LongAdder();
+    }
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int index = bucketIndex(micros);
+        if (index < BUCKETS) {
+            buckets[index].increment();
+        } else {
+            overflow.increment();
+        }
+        sumNanos.add(Math.max(0, nanos));
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    // the first value in microseconds that is above bucket index
+    private static long bucketEnd(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width;
+    }
+
+    // Prometheus buckets are cumulative: every "le" line counts everything up to its bound
+    void writeTo(StringBuilder out, String name, String labels) {
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += buckets[i].sum();
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(bucketEnd(i) / 1e6).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += overflow.sum();
+        out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ").append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+}
+
+// counts the bytes the blocking engine writes to a client socket
+class CountingOutputStream extends FilterOutputStream {
+    CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        Metrics.instance.addBytesOut(1);
+    }
+
+    // FilterOutputStream would write the array one byte at a time
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        Metrics.instance.addBytesOut(len);
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// The content types of the served files by file extension. The registry is built once from the
+// table below and the optional mimeTypesFile (the "type ext1 ext2" format of /etc/mime.types,
+// its entries win), so a request only does a hash lookup of its extension. Every type also
+// carries what the response stages need to know about it: the Content-Type value with the
+// charset of text types, whether it's worth compressing and its Cache-Control max-age.
+// A config reload builds a new registry, because these policies come from config.ini.
+public class MimeTypes {
+    public static volatile MimeTypes instance;
+
+    private static final String[][] BUILT_IN = {
+            {"text/html", "html", "htm"},
+            {"text/css", "css"},
+            {"text/plain", "txt", "text", "log"},
+            {"text/csv", "csv"},
+            {"text/markdown", "md"},
+            {"text/xml", "xml"},
+            {"text/javascript", "js", "mjs"},
+            {"application/json", "json", "map"},
+            {"application/manifest+json", "webmanifest"},
+            {"application/wasm", "wasm"},
+            {"application/pdf", "pdf"},
+            {"application/zip", "zip"},
+            {"application/gzip", "gz"},
+            {"application/x-tar", "tar"},
+            {"image/png", "png"},
+            {"image/jpeg", "jpg", "jpeg", "jpe"},
+            {"image/gif", "gif"},
+            {"image/bmp", "bmp"},
+            {"image/webp", "webp"},
+            {"image/avif", "avif"},
+            {"image/svg+xml", "svg"},
+            {"image/x-icon", "ico"},
+            {"font/woff", "woff"},
+            {"font/woff2", "woff2"},
+            {"font/ttf", "ttf"},
+            {"font/otf", "otf"},
+            {"audio/mpeg", "mp3"},
+            {"audio/ogg", "ogg"},
+            {"video/mp4", "mp4"},
+            {"video/webm", "webm"},
+    };
+    private static final String DEFAULT_TYPE = "application/octet-stream";
+
+    private final Map<String, MimeType> byExtension;
+    private final MimeType defaultType;
+
+    public static void init(ServerConfig config) {
+        instance = new MimeTypes(config);
+    }
+
+    public MimeTypes(ServerConfig config) {
+        Map<String, String> types = new HashMap<>();
+        for (String[] entry : BUILT_IN) {
+            for (int i = 1; i < entry.length; i++) {
+                types.put(entry[i], entry[0]);
+            }
+        }
+        if (!config.getMimeTypesFile().isEmpty()) {
+            readMimeTypesFile(Paths.get(config.getMimeTypesFile()), types);
+        }
+        // the extensions of a type share one MimeType
+        Map<String, MimeType> byName = new HashMap<>();
+        this.byExtension = new HashMap<>();
+        for (Map.Entry<String, String> entry : types.entrySet()) {
+            MimeType type = byName.computeIfAbsent(entry.getValue(), name -> new MimeType(name, config));
+            byExtension.put(entry.getKey(), type);
+        }
+        this.defaultType = new MimeType(DEFAULT_TYPE, config);
+    }
+
+    // a missing or broken file only costs its entries, the built-in table still works
+    private static void readMimeTypesFile(Path file, Map<String, String> types) {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment != -1) {
+                    line = line.substring(0, comment);
+                }
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 2 || fields[0].indexOf('/') == -1) {
+                    continue;
+                }
+                String type = fields[0].toLowerCase(Locale.ROOT);
+                for (int i = 1; i < fields.length; i++) {
+                    types.put(fields[i].toLowerCase(Locale.ROOT), type);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("mime types: can't read " + file + ", using the built-in types (" + e + ")");
+        }
+    }
+
+    public MimeType lookup(Path filePath) {
+        Path fileName = filePath.getFileName();
+        if (fileName == null) {
+            return defaultType;
+        }
+        String name = fileName.toString();
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || dot == name.length() - 1) {
+            return defaultType; // no extension, or a hidden file like ".htaccess"
+        }
+        String extension = name.substring(dot + 1);
+        MimeType type = byExtension.get(extension);
+        if (type == null) {
+            // most names are lower case already, only the others pay for the conversion
+            type = byExtension.getOrDefault(extension.toLowerCase(Locale.ROOT), defaultType);
+        }
+        return type;
+    }
+}
+
+// a content type with the policies of its responses, computed when the registry is built
+class MimeType {
+    private final String name; // "text/html"
+    private final String contentType; // the header value, "text/html; charset=utf-8"
+    private final boolean compressible;
+    private final int cacheMaxAge; // -1 when no Cache-Control header is sent
+
+    MimeType(String name, ServerConfig config) {
+        this.name = name;
+        String charset = config.getDefaultCharset();
+        this.contentType = hasCharset(name) && !charset.isEmpty() ? name + "; charset=" + charset : name;
+        this.compressible = isCompressible(name);
+        this.cacheMaxAge = config.getCacheMaxAge(name);
+    }
+
+    // only text types have a charset parameter, JSON is always UTF-8 (RFC 8259)
+    private static boolean hasCharset(String name) {
+        return name.startsWith("text/");
+    }
+
+    // images, archives and videos are already compressed, compressing them again only costs CPU
+    private static boolean isCompressible(String name) {
+        return name.startsWith("text/")
+                || name.startsWith("message/")
+                || name.equals("application/javascript")
+                || name.equals("application/json")
+                || name.equals("application/xml")
+                || name.equals("application/wasm")
+                || name.endsWith("+xml")
+                || name.endsWith("+json")
+                || name.equals("image/bmp")
+                || name.equals("image/x-icon")
+                || name.equals("font/ttf")
+                || name.equals("font/otf");
+    }
+
+    public String getName() { return name; }
+    public String getContentType() { return contentType; }
+    public boolean isCompressible() { return compressible; }
+    public int getCacheMaxAge() { return cacheMaxAge; }
+}
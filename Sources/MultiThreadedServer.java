@@ -1,49 +1,311 @@
 import java.io.*;
 import java.net.*;
 import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class MultiThreadedServer {
     public static AtomicInteger activeConnections = new AtomicInteger(0);
+    // admission limit of the blocking engine, a permit is held by every connection being served
+    public static Semaphore connectionPermits;
+    // set when the JVM is asked to exit, from then on every response closes its connection
+    public static volatile boolean shuttingDown = false;
+    // the listening sockets, closed first when we shut down
+    private static final List<ServerSocketChannel> listeners = new CopyOnWriteArrayList<>();
+    // how long a rejected connection is still read after its 503, see closeLingering
+    private static final int LINGER_MILLIS = 100;
     public static void main(String[] args) {
         try {
-            ServerConfig.init("../config.ini");
+            // the config file can be given on the command line, it's looked for next to the Sources directory otherwise
+            ServerConfig.init(args.length > 0 ? args[0] : "../config.ini");
         } catch (Exception e) {
             System.out.println("failed reading config file (" + e + ")");
             return;
         }
+        try {
+            AccessLog.init(ServerConfig.instance);
+        } catch (IOException e) {
+            System.out.println("failed opening the access log (" + e + ")");
+            return;
+        }
+        MimeTypes.init(ServerConfig.instance);
+        PathResolver.init(ServerConfig.instance);
+        FileCache.init(ServerConfig.instance.getRootDirectory(), ServerConfig.instance.getCacheMaxBytes(),
+                ServerConfig.instance.getCacheMaxEntrySize());
+        ParamsInfoWriter.init(ServerConfig.instance);
+
+        ExecutorService threadPool = createThreadPool();
+        Metrics.init(threadPool);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(threadPool), "shutdown"));
+        if (ServerConfig.instance.isReloadConfig()) {
+            ConfigReloader.start();
+        }
+        try {
+            if (ServerConfig.instance.getEngine().equals("nio")) {
+                // the selector based engine only uses the pool for handling complete requests
+                new NioServer(threadPool).start();
+            } else {
+                runBlockingServer(threadPool);
+            }
+        } catch (IOException ex) {
+            System.out.println("Server exception: " + ex.getMessage());
+            ex.printStackTrace();
+        } finally {
+            threadPool.shutdown();
+        }
+    }
 
-        try (ServerSocket serverSocket = new ServerSocket(ServerConfig.instance.getPort())) {
-            System.out.println("Server is listening on port " + ServerConfig.instance.getPort());
-            System.out.println("rootDirectory: " + ServerConfig.instance.getRootDirectory());
-            // limiting the number of threads to maxThreads from config.ini
-            ExecutorService threadPool = Executors.newFixedThreadPool(ServerConfig.instance.getMaxThreads());
+    private static ExecutorService createThreadPool() {
+        if (ServerConfig.instance.getThreading().equals("virtual")) {
+            ExecutorService virtualThreads = createVirtualThreadExecutor();
+            if (virtualThreads != null) {
+                return virtualThreads;
+            }
+            System.out.println("Virtual threads are not supported by this JVM, using the fixed thread pool");
+        }
+        // limiting the number of threads to maxThreads from config.ini. the queue is bounded, when
+        // it's full execute() throws and the work is answered with 503 instead of waiting in memory
+        int maxThreads = ServerConfig.instance.getMaxThreads();
+        int queueSize = ServerConfig.instance.getQueueSize();
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+        return new ThreadPoolExecutor(maxThreads, maxThreads, 0, TimeUnit.MILLISECONDS, queue);
+    }
+
+    // runs when the JVM is asked to exit (Ctrl+C, SIGTERM). we stop accepting, give the requests in
+    // flight shutdownTimeout to finish and close the access log last, so their records are written
+    private static void shutdown(ExecutorService threadPool) {
+        shuttingDown = true;
+        System.out.println("Shutting down, " + activeConnections.get() + " connections are open");
+        for (ServerSocketChannel listener : listeners) {
             try {
-                while (true) {
-                    if (activeConnections.get() >= ServerConfig.instance.getMaxThreads()) {
-                        System.out.println("Connection limit exceeded. Denying new connections.");
+                listener.close();
+            } catch (IOException e) {
+                System.out.println("Error closing the server socket: " + e.getMessage());
+            }
+        }
+        long deadline = System.nanoTime() + ServerConfig.instance.getShutdownTimeout() * 1_000_000;
+        while (activeConnections.get() > 0 && System.nanoTime() - deadline < 0) {
+            // idle keep-alive connections are closed, the busy ones close after their response
+            // (the NIO event loops close their idle connections themselves)
+            ConnectionWatchdog.closeIdleConnections();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (activeConnections.get() > 0) {
+            System.out.println("Closing " + activeConnections.get() + " connections that didn't finish in time");
+        }
+        threadPool.shutdownNow();
+        ParamsInfoWriter.instance.close();
+        AccessLog.instance.close();
+    }
 
-                    }
+    // Executors.newVirtualThreadPerTaskExecutor() only exists since Java 21, we look it up
+    // by reflection so the server still compiles and runs on older JDKs.
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // the classic engine: blocking accept loops (acceptorThreads of them) and a pool thread for every connection
+    private static void runBlockingServer(ExecutorService threadPool) throws IOException {
+        connectionPermits = new Semaphore(ServerConfig.instance.getMaxConnections());
+        // we open the socket through a channel (in blocking mode) so that big files can be
+        // sent with FileChannel.transferTo directly to the client socket
+        ServerSocketChannel[] serverChannels = openListeners(ServerConfig.instance.getAcceptorThreads());
+        System.out.println("Server is listening on port " + ServerConfig.instance.getPort());
+        System.out.println("rootDirectory: " + ServerConfig.instance.getRootDirectory());
+        runAcceptors(serverChannels, (serverChannel, acceptor) -> acceptLoop(serverChannel, acceptor, threadPool));
+    }
 
-                    Socket clientSocket = serverSocket.accept();
-                    int clientId = activeConnections.getAndIncrement();
-                    //for debugging:
-                    //System.out.println("Client connected. Current clients: " + activeConnections.get() + ". Client ID: " + clientId);
-                    threadPool.execute(new ClientHandler(clientSocket, clientId));
+    interface AcceptLoop {
+        void run(ServerSocketChannel serverChannel, int acceptor) throws IOException;
+    }
+
+    // runs an accept loop on a thread of its own for every listener and waits until they all ended
+    static void runAcceptors(ServerSocketChannel[] serverChannels, AcceptLoop loop) {
+        Thread[] acceptors = new Thread[serverChannels.length];
+        for (int i = 0; i < acceptors.length; i++) {
+            ServerSocketChannel serverChannel = serverChannels[i];
+            int acceptor = i;
+            acceptors[i] = new Thread(() -> {
+                try {
+                    loop.run(serverChannel, acceptor);
+                } catch (IOException e) {
+                    System.out.println("Acceptor " + acceptor + " failed: " + e);
                 }
-            } finally {
-                threadPool.shutdown();
+            }, "acceptor-" + i);
+            acceptors[i].start();
+        }
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // one listening socket for every acceptor. With reusePort each of them is bound with SO_REUSEPORT
+    // and the kernel spreads the new connections over them, so the acceptors never wait for each other.
+    // Otherwise all the acceptors share one socket and take turns in accept()
+    static ServerSocketChannel[] openListeners(int acceptors) throws IOException {
+        ServerSocketChannel[] serverChannels = new ServerSocketChannel[acceptors];
+        serverChannels[0] = ServerSocketChannel.open();
+        boolean reusePort = ServerConfig.instance.isReusePort() && acceptors > 1;
+        if (reusePort && !serverChannels[0].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            System.out.println("SO_REUSEPORT is not supported on this platform, the acceptors share one socket");
+            reusePort = false;
+        }
+        for (int i = 0; i < acceptors; i++) {
+            if (i > 0 && !reusePort) {
+                serverChannels[i] = serverChannels[0];
+                continue;
+            }
+            if (i > 0) {
+                serverChannels[i] = ServerSocketChannel.open();
+            }
+            if (reusePort) {
+                serverChannels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            bind(serverChannels[i]);
+        }
+        return serverChannels;
+    }
+
+    private static void acceptLoop(ServerSocketChannel serverChannel, int acceptor, ExecutorService threadPool) throws IOException {
+        while (true) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                if (shuttingDown) {
+                    return; // the pool finishes the connections that are still open
+                }
+                throw e;
+            }
+            configureSocket(clientChannel);
+            Socket clientSocket = clientChannel.socket();
+            if (!connectionPermits.tryAcquire()) {
+                // all permits are taken, we tell the client to come back later instead of queueing it
+                Metrics.instance.connectionRejected();
+                rejectConnection(clientSocket);
+                continue;
+            }
+            int clientId = activeConnections.getAndIncrement();
+            //for debugging:
+            //System.out.println("Client connected. Current clients: " + activeConnections.get() + ". Client ID: " + clientId);
+            ClientHandler handler = new ClientHandler(clientSocket, clientId);
+            try {
+                threadPool.execute(handler);
+                Metrics.instance.connectionAccepted(acceptor);
+            } catch (RejectedExecutionException e) {
+                if (ServerConfig.instance.getRejectionPolicy().equals("callerruns") && !shuttingDown) {
+                    // the acceptor serves the connection itself, meanwhile new connections wait in the backlog
+                    Metrics.instance.connectionAccepted(acceptor);
+                    handler.run();
+                } else {
+                    Metrics.instance.connectionRejected();
+                    rejectConnection(clientSocket);
+                    activeConnections.decrementAndGet();
+                    connectionPermits.release();
+                }
+            }
+        }
+    }
+
+    // SO_RCVBUF is set on the listening socket too, accepted sockets inherit it from the start of the handshake
+    static void bind(ServerSocketChannel serverChannel) throws IOException {
+        ServerConfig config = ServerConfig.instance;
+        if (config.getReceiveBufferSize() > 0) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        serverChannel.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
+        listeners.add(serverChannel);
+    }
+
+    // the socket options are read for every connection, so a reloaded config applies to new connections
+    static void configureSocket(SocketChannel channel) {
+        ServerConfig config = ServerConfig.instance;
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+            if (config.getReceiveBufferSize() > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+            }
+            if (config.getSendBufferSize() > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+            }
+        } catch (IOException e) {
+            // the connection still works with the default options
+            System.out.println("Error setting socket options: " + e.getMessage());
+        }
+    }
+
+    // answers 503 before anything was read and closes the socket
+    static void rejectConnection(Socket clientSocket) {
+        byte[] body = Util.StringToBytes("<html><body><h1>503 Service Unavailable</h1></body></html>\r\n");
+        try {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(Util.StringToBytes("HTTP/1.1 503 Service Unavailable\r\n"
+                    + "Content-Type: text/html\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Retry-After: " + ServerConfig.instance.getRetryAfter() + "\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n"));
+            out.write(body);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Error rejecting connection: " + e.getMessage());
+        } finally {
+            closeLingering(clientSocket);
+        }
+    }
+
+    // closing a socket with unread input (the request we didn't read) makes the kernel send a RST,
+    // and the client can lose the response that is still on its way. we end our side first and
+    // read what the client sends for a moment, a client that read the 503 closes its side too
+    static void closeLingering(Socket clientSocket) {
+        try {
+            clientSocket.shutdownOutput();
+            clientSocket.setSoTimeout(LINGER_MILLIS);
+            InputStream in = clientSocket.getInputStream();
+            byte[] discard = new byte[8 * 1024];
+            long deadline = System.nanoTime() + LINGER_MILLIS * 1_000_000L;
+            while (System.nanoTime() - deadline < 0 && in.read(discard) != -1) {
+                // nothing to do with the bytes
+            }
+        } catch (IOException e) {
+            // a timeout or a reset, either way we are done with the client
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing rejected connection: " + e.getMessage());
             }
-        } catch (IOException ex) {
-            System.out.println("Server exception: " + ex.getMessage());
-            ex.printStackTrace();
         }
     }
 }
@@ -51,102 +313,461 @@ public class MultiThreadedServer {
 class ClientHandler implements Runnable {
     private Socket clientSocket;
     private int clientId;
-    private StringBuilder log;
-
-    public static int CHUNK_SIZE = 16;
+    private String remoteAddress;
+    private final StringBuilder headerDump;
+    private StringBuilder log; // the headerDump while the current request is sampled for the access log, otherwise null
+    private int responseStatus;
+    private long responseLength; // -1 when no body was sent
+    private final ResponseHeaders response; // reused for the head of every response on this connection
+    private final long queuedAt; // System.nanoTime() when the connection was handed to the pool
+    private ConnectionWatchdog.Watch watch; // the write timeout of the blocking engine, null with NIO
+    private boolean keepAlive;
+    private int handledRequests;
+    // the settings of the current request, read once so a reload can't mix old and new values in it
+    private ServerConfig config;
 
     public ClientHandler(Socket socket, int clientId) {
+        this(socket, clientId, socket.getInetAddress().getHostAddress());
+    }
+
+    // used by the NIO engine, which owns the connection and only passes us complete requests
+    public ClientHandler(int clientId, String remoteAddress) {
+        this(null, clientId, remoteAddress);
+    }
+
+    private ClientHandler(Socket socket, int clientId, String remoteAddress) {
         this.clientSocket = socket;
         this.clientId = clientId;
-        this.log = new StringBuilder();
+        this.remoteAddress = remoteAddress;
+        this.headerDump = new StringBuilder();
+        this.log = null;
+        this.response = new ResponseHeaders();
+        this.queuedAt = System.nanoTime();
+        this.keepAlive = true;
+        this.handledRequests = 0;
     }
 
     @Override
     public void run() {
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            OutputStream out = clientSocket.getOutputStream();
+            ServerConfig connectionConfig = ServerConfig.instance;
+            long maxQueueTime = connectionConfig.getMaxQueueTime();
+            if (maxQueueTime > 0 && System.nanoTime() - queuedAt > maxQueueTime * 1_000_000) {
+                // the client has probably given up already, we answer quickly and keep the thread for newer work
+                Metrics.instance.requestShed();
+                MultiThreadedServer.rejectConnection(clientSocket);
+                return;
+            }
+            watch = ConnectionWatchdog.watch(clientSocket);
+            RequestReader in = new RequestReader(clientSocket.getInputStream());
+            // the headers and small bodies of a response are collected and sent to the socket together
+            OutputStream out = new BufferedOutputStream(
+                    new CountingOutputStream(new WatchedOutputStream(clientSocket.getOutputStream(), watch)),
+                    connectionConfig.getOutputBufferSize());
+            // an idle keep-alive connection is closed after keepAliveTimeout
+            clientSocket.setSoTimeout(connectionConfig.getKeepAliveTimeout());
             //debugging:
             //System.out.println("Client ID " + clientId + " started interaction.");
-            try {
-                // Parsing the request using HTTPRequest
-                HTTPRequest request = new HTTPRequest(log, in);
-                switch (request.getMethod()) {
-                    case "GET":
-                        handleGetOrHeadRequest(request, out, false);
-                        break;
-                    case "POST":
-                        handlePostRequest(request, out);
-                        break;
-                    case "HEAD":
-                        handleGetOrHeadRequest(request, out, true);
-                        break;
-                    case "TRACE":
-                        handleTraceRequest(request, out);
-                        break;
-                    default:
-                        sendErrorResponse(out, 501, "Not Implemented");
+            // we keep reading requests from the same socket until the client (or we) decide to close it.
+            // pipelined requests are already waiting in the reader, so they are answered in order.
+            while (keepAlive) {
+                watch.setIdle(true);
+                if (!serveOneRequest(in, out, ServerConfig.instance)) {
+                    break; // the client closed the connection or was idle for too long
                 }
-            } catch (BadRequestException e) {
-                sendErrorResponse(out, 400, "Bad Request");
             }
-        } 
+        } catch (ClosedChannelException e) {
+            // the watchdog closed the socket, because of a write timeout or because we are shutting down
+        }
         catch (Exception e) {
             System.out.println("Error handling client ID " + clientId + ": " + e);
         } finally {
+            if (watch != null) {
+                watch.unwatch();
+            }
             try {
                 //System.out.println("Client ID " + clientId + " not connected anymore");
-                Util.printLogsToServer(log);
                 clientSocket.close();
             } catch (IOException ex) {
                 System.out.println("Error closing connection for client ID " + clientId + ": " + ex.getMessage());
             }
             finally{
                 int currentClients = MultiThreadedServer.activeConnections.decrementAndGet(); // Decrement the counter
+                MultiThreadedServer.connectionPermits.release();
                 //System.out.println("Client ID " + clientId + " disconnected. Current clients using the server: " + currentClients);
             }
         }
     }
 
-    private void handleGetOrHeadRequest(HTTPRequest request, OutputStream out, boolean isHead) throws IOException {
-        String homeDirectory = System.getProperty("user.home");
-        //System.out.println("Current home directory: "+ homeDirectory);
-        String correctedRootDirectory = ServerConfig.instance.getRootDirectory().replaceFirst("^~", homeDirectory);
+    // reads a single request from the reader and writes its response.
+    // returns false when there was no request to read because the connection ended.
+    // config is the snapshot of the settings that the whole request uses
+    boolean serveOneRequest(RequestReader in, OutputStream out, ServerConfig config) throws IOException {
+        this.config = config;
+        if (watch != null) {
+            watch.setWriteTimeout(config.getWriteTimeout());
+        }
+        startResponse();
+        HTTPRequest request;
+        try {
+            // Parsing the request using HTTPRequest
+            request = new HTTPRequest(log, in, config);
+        } catch (RequestTimeoutException e) {
+            Metrics.instance.requestTimeout();
+            sendFatalError(out, 408, "Request Timeout");
+            finishRequest(null);
+            return true;
+        } catch (EOFException | SocketTimeoutException e) {
+            return false;
+        } catch (BadRequestException e) {
+            sendBadRequest(out);
+            finishRequest(null);
+            return true;
+        }
+        long parsed = System.nanoTime();
+        Metrics.instance.recordParse(parsed - request.getStartTime());
+        if (watch != null) {
+            watch.setIdle(false);
+        }
 
-        String requestedFile = request.getRequestedPage().equals("/") ? ServerConfig.instance.getDefaultPage() : request.getRequestedPage();
-        Path filePath = Paths.get(correctedRootDirectory, requestedFile);
+        handledRequests++;
+        keepAlive = request.isKeepAlive() && handledRequests < config.getMaxKeepAliveRequests()
+                && !MultiThreadedServer.shuttingDown;
+        if (request.isBodyTooLarge()) {
+            // the Content-Length already tells us, no need to read any of the body
+            sendFatalError(out, 413, "Payload Too Large");
+            finishRequest(request);
+            return true;
+        }
+        boolean responded = false;
+        try {
+            handleRequest(request, out);
+            responded = true;
+            if (keepAlive) {
+                // the handler may not have read the whole body, the next request starts after it
+                request.getBody().discard();
+            }
+        } catch (BadRequestException | BadRequestBodyException e) {
+            if (responded) {
+                keepAlive = false; // the response is out, we only can't find the next request
+            } else {
+                sendBadRequest(out);
+            }
+        } catch (PayloadTooLargeException e) {
+            if (responded) {
+                keepAlive = false;
+            } else {
+                sendFatalError(out, 413, "Payload Too Large");
+            }
+        }
+        Metrics.instance.recordHandle(System.nanoTime() - parsed);
+        finishRequest(request);
+        return true;
+    }
+
+    // after a bad request we can't know where the next request starts, so the connection is closed
+    private void sendBadRequest(OutputStream out) throws IOException {
+        sendFatalError(out, 400, "Bad Request");
+    }
+
+    // an error after which the rest of the connection can't be read (a bad request, or a body we won't read)
+    private void sendFatalError(OutputStream out, int statusCode, String statusMessage) throws IOException {
+        keepAlive = false;
+        sendErrorResponse(out, statusCode, statusMessage);
+    }
+
+    // used by the NIO engine for requests it refuses before they are parsed
+    void rejectRequest(OutputStream out, int statusCode, String statusMessage) throws IOException {
+        startResponse();
+        keepAlive = false;
+        // like rejectConnection, a 503 tells the client when to come back
+        String extraHeaders = statusCode == 503 ? "Retry-After: " + ServerConfig.instance.getRetryAfter() + "\r\n" : null;
+        sendErrorResponse(out, statusCode, statusMessage, extraHeaders);
+        finishRequest(null);
+    }
+
+    // the sampling decision is made before the request is parsed, so the parser knows whether to dump the headers
+    private void startResponse() {
+        headerDump.setLength(0);
+        log = AccessLog.instance.sampleHeaders() ? headerDump : null;
+        responseStatus = 0;
+        responseLength = -1;
+    }
+
+    // records the request in the access log and the metrics. request is null when it couldn't be parsed
+    private void finishRequest(HTTPRequest request) {
+        if (request == null) {
+            Metrics.instance.recordRequest(null, responseStatus, -1);
+            AccessLog.instance.log(remoteAddress, null, responseStatus, responseLength, null, null, log);
+        } else {
+            Metrics.instance.recordRequest(request.getMethod(), responseStatus, System.nanoTime() - request.getStartTime());
+            AccessLog.instance.log(remoteAddress, request.getRequestLine(), responseStatus, responseLength,
+                    request.getHeader("referer"), request.getHeader("user-agent"), log);
+        }
+    }
+
+    // sends the head built in response, a small body goes out in the same write
+    private void writeHead(OutputStream out, byte[] body) throws IOException {
+        responseStatus = response.getStatus();
+        responseLength = response.getContentLength();
+        response.writeTo(out, keepAlive, log, body);
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    private void handleRequest(HTTPRequest request, OutputStream out) throws IOException, BadRequestException {
+        switch (request.getMethod()) {
+            case "GET":
+                handleGetOrHeadRequest(request, out, false);
+                break;
+            case "POST":
+                handlePostRequest(request, out);
+                break;
+            case "HEAD":
+                handleGetOrHeadRequest(request, out, true);
+                break;
+            case "TRACE":
+                handleTraceRequest(request, out);
+                break;
+            default:
+                sendErrorResponse(out, 501, "Not Implemented");
+        }
+    }
+
+    private void handleGetOrHeadRequest(HTTPRequest request, OutputStream out, boolean isHead) throws IOException, BadRequestException {
+        String metricsPath = config.getMetricsPath();
+        if (!metricsPath.isEmpty() && request.getRequestedPage().equals(metricsPath)) {
+            sendMetrics(out, isHead);
+            return;
+        }
+        // decoded, confined to the root and checked for existence once per distinct path
+        ResolvedPath resolved = PathResolver.instance.resolve(request.getRequestedPage(), config);
+        Path filePath = resolved.getPath();
 
-        if (!Files.exists(filePath)) {
-            System.out.println("File not found: " + filePath);
+        // small files are served from memory together with their precomputed headers, a page that a
+        // POST created is served from memory until it's written
+        CachedFile cachedFile = ParamsInfoWriter.instance.getUnwritten(filePath);
+        if (cachedFile == null && resolved.exists()) {
+            cachedFile = FileCache.instance.get(filePath);
+        }
+        if (cachedFile == null && !resolved.exists()) {
             sendErrorResponse(out, 404, "404 Not Found");
             return;
         }
 
-        String contentType = determineContentType(filePath);
-        if (isHead){
-            Util.writeToByteStreamAndLog(log, out, "HTTP/1.1 200 OK\r\n");
-            Util.writeToByteStreamAndLog(log, out, "Content-Type: " + contentType + "\r\n");
-            Util.writeToByteStreamAndLog(log, out, "Content-Length: " + Files.size(filePath) + "\r\n");
-            out.write(Util.StringToBytes("\r\n")); // No body is sent for HEAD request
-        }else {
-            byte[] fileContent = Files.readAllBytes(filePath);
-            sendSuccessResponse(request, out, contentType, fileContent);
+        String range = request.getHeader("range");
+        boolean chunked = request.getHeaderOrDefault("chunked", "").equals("yes");
+        // ranges and the chunked mode are always served from the identity encoding
+        String encoding = null;
+        if (config.isCompression() && range == null && !chunked) {
+            encoding = ContentEncoding.negotiate(request.getHeader("accept-encoding"));
+        }
+
+        MimeType mimeType;
+        long fileSize;
+        long lastModified;
+        String etag;
+        byte[] fileHeaders;
+        byte[] content = null; // the body when it's in memory
+        Path bodyPath = filePath; // the file the body is streamed from otherwise
+        if (cachedFile != null) {
+            mimeType = cachedFile.getMimeType();
+            lastModified = cachedFile.getLastModified();
+            EncodedVariant variant = encoding == null ? null : cachedFile.getVariant(encoding, config.getCompressionMinSize());
+            if (variant != null) {
+                content = variant.getContent();
+                etag = variant.getETag();
+                fileHeaders = variant.getHeaders();
+            } else {
+                encoding = null; // not worth compressing, or compression is off
+                content = cachedFile.getContent();
+                etag = cachedFile.getETag();
+                fileHeaders = cachedFile.getHeaders();
+            }
+            fileSize = content.length;
+        } else {
+            mimeType = MimeTypes.instance.lookup(filePath);
+            lastModified = Files.getLastModifiedTime(filePath).toMillis();
+            // big files are not compressed on the fly, but a precompressed .gz next to them is used
+            Path precompressed = ContentEncoding.GZIP.equals(encoding) ? Paths.get(filePath + ".gz") : null;
+            if (precompressed != null && Files.isRegularFile(precompressed)
+                    && Files.getLastModifiedTime(precompressed).toMillis() >= lastModified) {
+                bodyPath = precompressed;
+            } else {
+                encoding = null;
+            }
+            fileSize = Files.size(bodyPath);
+            // we don't hash files that aren't cached, so their tag only reflects size and time
+            etag = ConditionalRequest.weakETag(fileSize, lastModified);
+            if (encoding != null) {
+                etag = ContentEncoding.variantETag(etag, encoding);
+            }
+            fileHeaders = CachedFile.buildHeaders(mimeType, fileSize, lastModified, etag, encoding);
+        }
+
+        if (ConditionalRequest.isNotModified(request, etag, lastModified)) {
+            sendNotModified(out, mimeType, lastModified, etag, encoding);
+            return;
+        }
+
+        if (!isHead && range != null
+                && sendRangeResponse(request, out, filePath, cachedFile, range, mimeType, fileSize, lastModified, etag)) {
+            return;
+        }
+
+        if (!isHead && chunked) {
+            if (content != null) {
+                sendChunkedResponse(out, mimeType.getContentType(), new ByteArrayInputStream(content));
+            } else {
+                try (InputStream body = Files.newInputStream(filePath)) {
+                    sendChunkedResponse(out, mimeType.getContentType(), body);
+                }
+            }
+            return;
+        }
+
+        // the precomputed headers already have the Content-Length
+        response.start(200, "OK").addLines(fileHeaders);
+        if (isHead) {
+            writeHead(out, null); // No body is sent for HEAD request
+            responseLength = -1;
+        } else if (content != null) {
+            writeHead(out, content);
+            responseLength = fileSize;
+        } else if (fileSize >= config.getZeroCopyThreshold()) {
+            writeHead(out, null);
+            responseLength = fileSize;
+            // big files are never loaded to the heap, the body goes from the file to the socket
+            FileSender.send(bodyPath, 0, fileSize, config.isMappedFiles(), out, getSocketChannel(), watch);
+        } else {
+            writeHead(out, Files.readAllBytes(bodyPath));
+            responseLength = fileSize;
+        }
+        out.flush();
+    }
+
+    // the reserved metrics path is answered from memory and never looked up in the root directory
+    private void sendMetrics(OutputStream out, boolean isHead) throws IOException {
+        byte[] body = Util.StringToBytes(Metrics.instance.toPrometheus());
+        response.start(200, "OK")
+                .add(ResponseHeaders.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8")
+                .addLines(ResponseHeaders.CACHE_CONTROL_NO_STORE)
+                .contentLength(body.length);
+        if (isHead) {
+            writeHead(out, null);
+            responseLength = -1;
+        } else {
+            writeHead(out, body);
+        }
+        out.flush();
+    }
+
+    // the client's copy is still valid, so we only send the validators without a body. the ETag
+    // and Vary are the ones of the 200 that encoding (null for the identity encoding) would get,
+    // so a cache updates the right variant (RFC 9110 section 15.4.5)
+    private void sendNotModified(OutputStream out, MimeType mimeType, long lastModified, String etag, String encoding) throws IOException {
+        response.start(304, "Not Modified")
+                .add(ResponseHeaders.ETAG, etag)
+                .add(ResponseHeaders.LAST_MODIFIED, Util.formatHttpDate(lastModified));
+        if (encoding != null || mimeType.isCompressible()) {
+            response.addLines(ResponseHeaders.VARY_ACCEPT_ENCODING);
+        }
+        int maxAge = mimeType.getCacheMaxAge();
+        if (maxAge >= 0) {
+            response.add(ResponseHeaders.CACHE_CONTROL_MAX_AGE, maxAge);
+        }
+        writeHead(out, null);
+        out.flush();
+    }
+
+    // answers a Range request with 206 Partial Content, or 416 when no range is satisfiable.
+    // returns false when the Range header has to be ignored and the whole file is sent instead.
+    private boolean sendRangeResponse(HTTPRequest request, OutputStream out, Path filePath, CachedFile cachedFile, String rangeHeader,
+                                      MimeType mimeType, long fileSize, long lastModified, String etag) throws IOException {
+        String ifRange = request.getHeader("if-range");
+        if (ifRange != null && !ByteRange.isIfRangeSatisfied(ifRange, lastModified, etag)) {
+            return false;
+        }
+        List<ByteRange> ranges = ByteRange.parse(rangeHeader, fileSize);
+        if (ranges == null) {
+            return false;
         }
+        if (ranges.isEmpty()) {
+            sendErrorResponse(out, 416, "Range Not Satisfiable", "Content-Range: bytes */" + fileSize + "\r\n");
+            return true;
+        }
+
+        // the same validators as the 200, so a cache can combine the parts (RFC 9110 section 15.3.7)
+        response.start(206, "Partial Content").addLines(ResponseHeaders.ACCEPT_RANGES_BYTES)
+                .add(ResponseHeaders.ETAG, etag)
+                .add(ResponseHeaders.LAST_MODIFIED, Util.formatHttpDate(lastModified));
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.add(ResponseHeaders.CONTENT_TYPE, mimeType.getContentType())
+                    .add(ResponseHeaders.CONTENT_RANGE, range.toContentRange(fileSize))
+                    .contentLength(range.getLength());
+            writeHead(out, null);
+            writeFileRegion(out, filePath, cachedFile, range.getStart(), range.getLength());
+            out.flush();
+            return true;
+        }
+
+        // several ranges are sent as a multipart/byteranges body, every part has its own headers
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String[] partHeaders = new String[ranges.size()];
+        String closingBoundary = "\r\n--" + boundary + "--\r\n";
+        long contentLength = closingBoundary.length();
+        for (int i = 0; i < ranges.size(); i++) {
+            partHeaders[i] = "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + mimeType.getContentType() + "\r\n"
+                    + "Content-Range: " + ranges.get(i).toContentRange(fileSize) + "\r\n"
+                    + "\r\n";
+            contentLength += partHeaders[i].length() + ranges.get(i).getLength();
+        }
+        response.add(ResponseHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary)
+                .contentLength(contentLength);
+        writeHead(out, null);
+        for (int i = 0; i < ranges.size(); i++) {
+            out.write(Util.StringToBytes(partHeaders[i]));
+            writeFileRegion(out, filePath, cachedFile, ranges.get(i).getStart(), ranges.get(i).getLength());
+        }
+        out.write(Util.StringToBytes(closingBoundary));
+        out.flush();
+        return true;
+    }
+
+    // writes only the requested part of the file, from the cache or straight from the disk
+    private void writeFileRegion(OutputStream out, Path filePath, CachedFile cachedFile, long start, long length) throws IOException {
+        if (cachedFile != null) {
+            out.write(cachedFile.getContent(), (int) start, (int) length);
+        } else {
+            FileSender.send(filePath, start, length, config.isMappedFiles(), out, getSocketChannel(), watch);
+        }
+    }
 
+    // null when the NIO engine owns the connection, or the socket wasn't opened through a channel
+    private WritableByteChannel getSocketChannel() {
+        return clientSocket == null ? null : clientSocket.getChannel();
     }
+
     private void handlePostRequest(HTTPRequest request, OutputStream out) throws IOException, BadRequestException {
         Map<String, String> urlParams = request.getParameters();
 
-        String contentType = request.getHeaders().get("content-type");
-        int contentLen = request.getContentLength();
-        if (contentType == null || !contentType.equalsIgnoreCase("application/x-www-form-urlencoded")) {
-            if (request.getBody().length > 0 && contentLen == 0) {
-                throw new BadRequestException();
-            }
+        String contentType = request.getHeader("content-type");
+        // parsed while it arrives, the body is never held in memory as a whole
+        RequestBody body = request.getBody();
+        Map<String, String> bodyParams = Util.parseParameters(body);
+        // other content types are only accepted with a Content-Length
+        if (!isFormUrlEncoded(contentType) && body.getBytesRead() > 0 && request.getContentLength() == 0) {
+            throw new BadRequestException();
         }
 
-        Map<String, String> bodyParams = Util.parseParameters(new String(request.getBody()));
-
         // For debugging: Print each parameter and its value
         //urlParams.forEach((key, value) -> System.out.println(key + ": " + value));
 
@@ -164,107 +785,80 @@ class ClientHandler implements Runnable {
                 + "<p> url params: " + urlParams.toString() + "</p>"
                 + "<p> body params: " + bodyParams.toString() + "</p>"
                 + "</body></center></html>";
-        try{
-            String paramsInfo = ServerConfig.instance.getRootDirectory() + "/params_info.html";
-            //System.out.println(paramsInfo);
-            writeToParamsInfo(paramsInfo, responseMessage);
-        } finally {
-            sendSuccessResponse(request, out, "text/html", responseMessage.getBytes());
-        }
-
+        byte[] page = responseMessage.getBytes(StandardCharsets.UTF_8);
+        // the file is written by a background thread, the next GET already gets the new page from memory
+        ParamsInfoWriter.instance.submit(page, urlParams, bodyParams);
+        sendSuccessResponse(request, out, "text/html", page);
     }
 
-    private void writeToParamsInfo(String path,String responseMessage) {
-        // Overwrite the file with new content
-        try (FileWriter writer = new FileWriter(path, false)) {
-            writer.write(responseMessage);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static boolean isFormUrlEncoded(String contentType) {
+        if (contentType == null) {
+            return false;
         }
+        int parameters = contentType.indexOf(';');
+        String type = parameters == -1 ? contentType : contentType.substring(0, parameters);
+        return type.trim().equalsIgnoreCase("application/x-www-form-urlencoded");
     }
 
     private void handleTraceRequest(HTTPRequest request, OutputStream out) throws IOException {
-        Util.writeToByteStreamAndLog(log, out, "HTTP/1.1 200 OK\r\n");
-        Util.writeToByteStreamAndLog(log, out, "Content-Type: message/http\r\n");
-        out.write(Util.StringToBytes("\r\n"));
+        // the body is built first so we can send a Content-Length and keep the connection open
+        StringBuilder body = new StringBuilder();
         // the received request line
-        Util.writeToByteStreamAndLog(log, out, "TRACE " + request.getRequestedPage() + " HTTP/1.1\r\n");
+        body.append("TRACE ").append(request.getRequestedPage()).append(" HTTP/1.1\r\n");
         // return all the headers of the received request
         for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
-            Util.writeToByteStreamAndLog(log, out, header.getKey() + ": " + header.getValue() + "\r\n");
+            body.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        byte[] bodyBytes = Util.StringToBytes(body.toString());
+
+        response.start(200, "OK")
+                .add(ResponseHeaders.CONTENT_TYPE, "message/http")
+                .contentLength(bodyBytes.length);
+        writeHead(out, bodyBytes);
+        if (log != null) {
+            log.append("< ").append(body);
         }
         out.flush();
     }
 
     private void sendErrorResponse(OutputStream out, int statusCode, String statusMessage) throws IOException {
-        Util.writeToByteStreamAndLog(log, out, "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n");
-        Util.writeToByteStreamAndLog(log, out, "Content-Type: text/html\r\n");
+        sendErrorResponse(out, statusCode, statusMessage, null);
+    }
+
+    // extraHeaders are complete header lines (with "\r\n") that are added to the response, or null
+    private void sendErrorResponse(OutputStream out, int statusCode, String statusMessage, String extraHeaders) throws IOException {
         byte[] body = Util.StringToBytes("<html><body><h1>" + statusMessage + "</h1></body></html>\r\n");
-        Util.writeToByteStreamAndLog(log, out, "Content-Length: " + body.length + "\r\n");
-        out.write(Util.StringToBytes("\r\n"));
-        out.write(body);
+        response.start(statusCode, statusMessage).add(ResponseHeaders.CONTENT_TYPE, "text/html");
+        if (extraHeaders != null) {
+            response.addLines(extraHeaders);
+        }
+        response.contentLength(body.length);
+        writeHead(out, body);
         out.flush();
     }
 
     private void sendSuccessResponse(HTTPRequest request, OutputStream out, String contentType, byte[] content) throws IOException {
         //Util.writeToByteStreamAndLog(out, "Content-Type: " + contentType + "\r\n");
-        if (request.getHeaders().getOrDefault("chunked", "").equals("yes")) {
-            Util.writeToByteStreamAndLog(log, out, "HTTP/1.1 200 OK\r\n");
-            Util.writeToByteStreamAndLog(log, out,"Content-Type: " + contentType + "\r\n");
-            Util.writeToByteStreamAndLog(log, out, "Transfer-Encoding: chunked\r\n");
-            out.write(Util.StringToBytes("\r\n"));
-            writeChunkedResponse(out, content);
-        } else {
-            Util.writeToByteStreamAndLog(log, out, "HTTP/1.1 200 OK\r\n");
-            Util.writeToByteStreamAndLog(log, out, "Content-Type: " + contentType + "\r\n");
-            Util.writeToByteStreamAndLog(log, out, "Content-Length: " + content.length + "\r\n");
-            out.write(Util.StringToBytes("\r\n"));
-            out.write(content);
+        if (request.getHeaderOrDefault("chunked", "").equals("yes")) {
+            sendChunkedResponse(out, contentType, new ByteArrayInputStream(content));
+            return;
         }
+        response.start(200, "OK")
+                .add(ResponseHeaders.CONTENT_TYPE, contentType)
+                .contentLength(content.length);
+        writeHead(out, content);
         out.flush();
     }
 
-    private void writeChunkedResponse(OutputStream out, byte[] content) throws IOException{
-        int i = 0;
-
-        while (i < content.length) {
-            if (content.length - i >= CHUNK_SIZE) {
-                out.write(Util.StringToBytes(String.format("%x", CHUNK_SIZE) + "\r\n"));
-                out.write(Arrays.copyOfRange(content, i, i + CHUNK_SIZE));
-                out.write(Util.StringToBytes("\r\n"));
-                i += CHUNK_SIZE;
-                continue;
-            }
-            
-            out.write(Util.StringToBytes(String.format("%x", content.length - i) + "\r\n"));
-            out.write(Arrays.copyOfRange(content, i, content.length));
-            out.write(Util.StringToBytes("\r\n"));
-            i += (content.length - i);
-        }
-        out.write(Util.StringToBytes("0\r\n"));
-        out.write(Util.StringToBytes("\r\n"));
-    }
-
-    private String determineContentType(Path filePath) {
-        String path = filePath.toString().toLowerCase();
-        if (path.endsWith(".html") || path.endsWith(".htm")) {
-            return "text/html";
-        } else if (path.matches(".*\\.(jpg|jpeg|png|gif|bmp)$")) {
-            return "image/" + getExtension(path);
-        } else if (path.endsWith(".ico")) {
-            return "icon";
-        } else {
-            return "application/octet-stream"; // all other file types
-        }
-    }
-    private String getExtension(String fileName) {
-        int lastIndex = fileName.lastIndexOf('.');
-        if (lastIndex > 0) {
-            return fileName.substring(lastIndex + 1);
-        }
-        return "";
+    // the body is streamed in chunks of chunkSize bytes, so its length doesn't have to be known in advance
+    private void sendChunkedResponse(OutputStream out, String contentType, InputStream body) throws IOException {
+        response.start(200, "OK")
+                .add(ResponseHeaders.CONTENT_TYPE, contentType)
+                .addLines(ResponseHeaders.TRANSFER_ENCODING_CHUNKED);
+        writeHead(out, null);
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out, config.getChunkSize());
+        responseLength = body.transferTo(chunked);
+        chunked.close(); // the last chunk, the connection stays open
+        out.flush();
     }
 }
-
-
-
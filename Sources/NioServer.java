@@ -0,0 +1,799 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+// Non-blocking engine (engine=nio in config.ini).
+// Acceptor threads hand new connections to a few selector event loops. The event loops
+// read bytes until a whole request arrived, pass it to a ClientHandler on the thread pool and
+// write the response back without blocking, so idle keep-alive connections don't hold a thread.
+// With several acceptors every acceptor feeds its own group of event loops.
+public class NioServer {
+    private final EventLoop[] eventLoops;
+
+    public NioServer(ExecutorService threadPool) throws IOException {
+        this.eventLoops = new EventLoop[Math.max(1, ServerConfig.instance.getNioEventLoops())];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(threadPool);
+            Metrics.instance.registerEventLoop(eventLoops[i]::getConnectionCount);
+        }
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.start();
+        }
+
+        int acceptors = ServerConfig.instance.getAcceptorThreads();
+        ServerSocketChannel[] serverChannels = MultiThreadedServer.openListeners(acceptors);
+        System.out.println("Server is listening on port " + ServerConfig.instance.getPort() + " (nio engine)");
+        System.out.println("rootDirectory: " + ServerConfig.instance.getRootDirectory());
+        MultiThreadedServer.runAcceptors(serverChannels,
+                (serverChannel, acceptor) -> acceptLoop(serverChannel, acceptor, eventLoopGroup(acceptor, acceptors)));
+    }
+
+    // the event loops acceptor i feeds: every acceptors-th loop starting with loop i.
+    // with fewer loops than acceptors, acceptors share a loop
+    private EventLoop[] eventLoopGroup(int acceptor, int acceptors) {
+        if (eventLoops.length <= acceptors) {
+            return new EventLoop[] {eventLoops[acceptor % eventLoops.length]};
+        }
+        List<EventLoop> group = new ArrayList<>();
+        for (int i = acceptor; i < eventLoops.length; i += acceptors) {
+            group.add(eventLoops[i]);
+        }
+        return group.toArray(new EventLoop[0]);
+    }
+
+    private static void acceptLoop(ServerSocketChannel serverChannel, int acceptor, EventLoop[] group) throws IOException {
+        int next = 0;
+        while (true) {
+            // accepting is blocking, the accepted channels are non-blocking
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                if (MultiThreadedServer.shuttingDown) {
+                    return; // the event loops finish the connections that are still open
+                }
+                throw e;
+            }
+            channel.configureBlocking(false);
+            MultiThreadedServer.configureSocket(channel);
+            int clientId = MultiThreadedServer.activeConnections.getAndIncrement();
+            Metrics.instance.connectionAccepted(acceptor);
+            group[next].register(channel, clientId);
+            next = (next + 1) % group.length;
+        }
+    }
+}
+
+class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHER_BUFFERS = 16;
+    // the timeouts are checked this often instead of after every select(), which would cost a walk
+    // over all the connections per wakeup
+    private static final long SWEEP_INTERVAL_MILLIS = 500;
+
+    private final ExecutorService threadPool;
+    private final Selector selector;
+    // work that other threads want to run on the event loop thread (new connections, finished responses)
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer[] gatherBuffers;
+    private volatile int connectionCount; // only changed by the event loop thread, read by the metrics
+    private long lastSweep; // System.currentTimeMillis() of the last closeIdleConnections()
+
+    public EventLoop(ExecutorService threadPool) throws IOException {
+        this.threadPool = threadPool;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+    }
+
+    public void register(SocketChannel channel, int clientId) {
+        submit(() -> {
+            try {
+                // null when the client is already gone
+                SocketAddress address = channel.getRemoteAddress();
+                String remoteAddress = address instanceof InetSocketAddress
+                        ? ((InetSocketAddress) address).getAddress().getHostAddress() : "-";
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, new ClientHandler(clientId, remoteAddress)));
+                connectionCount++;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error registering client ID " + clientId + ": " + e);
+                closeChannel(channel);
+                // the acceptor counted the connection, close() won't run for it
+                MultiThreadedServer.activeConnections.decrementAndGet();
+            }
+        });
+    }
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(SWEEP_INTERVAL_MILLIS);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("Event loop task failed: " + e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (connection == null || !key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            onRead(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            // the socket took bytes since we asked, the write timeout starts again
+                            connection.lastWrite = System.currentTimeMillis();
+                            onWrite(connection);
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    } catch (RuntimeException e) {
+                        // a bug with one connection must not stop the loop, it serves all the others too
+                        System.out.println("Error on connection from " + connection.handler.getRemoteAddress() + ": " + e);
+                        close(connection);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                    lastSweep = now;
+                    closeIdleConnections(now);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Event loop error: " + e);
+            }
+        }
+    }
+
+    private void onRead(NioConnection connection) throws IOException {
+        readBuffer.clear();
+        int read = connection.channel.read(readBuffer);
+        if (read == -1) {
+            close(connection);
+            return;
+        }
+        readBuffer.flip();
+        connection.append(readBuffer);
+        connection.lastActivity = System.currentTimeMillis();
+        dispatchNextRequest(connection);
+    }
+
+    // if a complete request is buffered, hand it to the thread pool.
+    // only one request per connection is handled at a time so pipelined responses keep their order,
+    // and the next one waits until the last response is written, so a client that pipelines and
+    // doesn't read can't make us hold its responses in memory
+    private void dispatchNextRequest(NioConnection connection) throws IOException {
+        if (connection.busy || connection.closeAfterWrite || !connection.pending.isEmpty()) {
+            return;
+        }
+
+        // the framing here and the handling on the pool thread use the same settings
+        ServerConfig config = ServerConfig.instance;
+        int requestEnd;
+        try {
+            requestEnd = connection.framing.findRequestEnd(connection.buffer, connection.length, config);
+        } catch (BadRequestException e) {
+            respondBadRequest(connection);
+            return;
+        } catch (PayloadTooLargeException e) {
+            respondPayloadTooLarge(connection);
+            return;
+        }
+        if (requestEnd == -1) {
+            return; // wait for more bytes
+        }
+
+        byte[] request = connection.take(requestEnd);
+        connection.busy = true;
+        // while the request is handled we stop reading, so a client can't make us buffer without limit
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        long queuedAt = System.nanoTime();
+        try {
+            threadPool.execute(() -> handle(connection, request, queuedAt, config));
+        } catch (RejectedExecutionException e) {
+            // the queue is full (or we are shutting down), the event loop answers right away.
+            // running the request here would stop all the other connections of this loop
+            Metrics.instance.connectionRejected();
+            respondServiceUnavailable(connection);
+        }
+    }
+
+    // runs on a pool thread
+    private void handle(NioConnection connection, byte[] request, long queuedAt, ServerConfig config) {
+        NioResponse response = new NioResponse();
+        try {
+            long maxQueueTime = config.getMaxQueueTime();
+            if (maxQueueTime > 0 && System.nanoTime() - queuedAt > maxQueueTime * 1_000_000) {
+                // the client has probably given up already, we answer quickly and keep the thread for newer work
+                Metrics.instance.requestShed();
+                connection.handler.rejectRequest(response, 503, "Service Unavailable");
+            } else {
+                RequestReader reader = new RequestReader(new ByteArrayInputStream(request));
+                connection.handler.serveOneRequest(reader, response, config);
+            }
+        } catch (Exception e) {
+            System.out.println("Error handling request: " + e);
+            submit(() -> close(connection));
+            return;
+        }
+        boolean keepAlive = connection.handler.isKeepAlive();
+        submit(() -> onResponseReady(connection, response.getParts(), keepAlive));
+    }
+
+    private void respondBadRequest(NioConnection connection) throws IOException {
+        NioResponse response = new NioResponse();
+        connection.handler.rejectRequest(response, 400, "Bad Request");
+        onResponseReady(connection, response.getParts(), false);
+    }
+
+    private void respondServiceUnavailable(NioConnection connection) throws IOException {
+        NioResponse response = new NioResponse();
+        connection.handler.rejectRequest(response, 503, "Service Unavailable");
+        onResponseReady(connection, response.getParts(), false);
+    }
+
+    // the head of a request didn't arrive within requestTimeout (a slowloris client)
+    private void respondRequestTimeout(NioConnection connection) throws IOException {
+        NioResponse response = new NioResponse();
+        connection.handler.rejectRequest(response, 408, "Request Timeout");
+        onResponseReady(connection, response.getParts(), false);
+    }
+
+    // the event loop buffers a whole request before it's handled, so a body over maxBodySize is refused up front
+    private void respondPayloadTooLarge(NioConnection connection) throws IOException {
+        NioResponse response = new NioResponse();
+        connection.handler.rejectRequest(response, 413, "Payload Too Large");
+        onResponseReady(connection, response.getParts(), false);
+    }
+
+    private void onResponseReady(NioConnection connection, List<ResponsePart> response, boolean keepAlive) {
+        if (!connection.channel.isOpen()) {
+            response.forEach(ResponsePart::release);
+            return;
+        }
+        connection.busy = false;
+        connection.pending.addAll(response);
+        connection.responseReadyTime = System.nanoTime();
+        connection.lastWrite = System.currentTimeMillis();
+        if (!keepAlive) {
+            connection.closeAfterWrite = true;
+        }
+        try {
+            onWrite(connection);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    // writes what the socket takes. when the response is out we read and dispatch the next request
+    private void onWrite(NioConnection connection) throws IOException {
+        while (!connection.pending.isEmpty()) {
+            ResponsePart part = connection.pending.peek();
+            if (part instanceof BufferPart) {
+                // consecutive buffers (e.g. pipelined responses) go to the socket in one gathering write
+                if (!writeBuffers(connection)) {
+                    connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                continue;
+            }
+            if (!part.writeTo(connection.channel)) {
+                // the socket buffer is full, we continue when the selector tells us it's writable
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.pending.poll();
+        }
+        if (connection.responseReadyTime != 0) {
+            Metrics.instance.recordWrite(System.nanoTime() - connection.responseReadyTime);
+            connection.responseReadyTime = 0;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (connection.closeAfterWrite) {
+            close(connection);
+            return;
+        }
+        if (!connection.busy) {
+            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+            dispatchNextRequest(connection);
+        }
+    }
+
+    // returns false when the socket buffer is full before all the buffers at the head of the queue were written
+    private boolean writeBuffers(NioConnection connection) throws IOException {
+        int count = 0;
+        for (ResponsePart part : connection.pending) {
+            if (!(part instanceof BufferPart) || count == gatherBuffers.length) {
+                break;
+            }
+            gatherBuffers[count++] = ((BufferPart) part).getBuffer();
+        }
+        Metrics.instance.addBytesOut(connection.channel.write(gatherBuffers, 0, count));
+        boolean complete = true;
+        for (int i = 0; i < count; i++) {
+            if (gatherBuffers[i].hasRemaining()) {
+                complete = false;
+                break;
+            }
+            connection.pending.poll();
+        }
+        Arrays.fill(gatherBuffers, 0, count, null);
+        return complete;
+    }
+
+    // also enforces the request and write timeouts, and closes idle connections when the server shuts down
+    private void closeIdleConnections(long now) {
+        ServerConfig config = ServerConfig.instance;
+        long timeout = config.getKeepAliveTimeout();
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection == null || connection.busy || !connection.channel.isOpen()) {
+                continue;
+            }
+            if (!connection.pending.isEmpty()) {
+                // a client that doesn't read its response can't keep it in our memory for ever
+                if (config.getWriteTimeout() > 0 && now - connection.lastWrite > config.getWriteTimeout()) {
+                    Metrics.instance.writeTimeout();
+                    close(connection);
+                }
+            } else if (connection.length > 0 && config.getRequestTimeout() > 0
+                    && now - connection.requestStart > config.getRequestTimeout() && !connection.framing.isHeadComplete()) {
+                Metrics.instance.requestTimeout();
+                try {
+                    respondRequestTimeout(connection);
+                } catch (IOException e) {
+                    close(connection);
+                }
+            } else if ((MultiThreadedServer.shuttingDown && connection.length == 0) || now - connection.lastActivity > timeout) {
+                close(connection);
+            }
+        }
+    }
+
+    private void close(NioConnection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        connection.key.cancel();
+        closeChannel(connection.channel);
+        connection.pending.forEach(ResponsePart::release);
+        connection.pending.clear();
+        connectionCount--;
+        MultiThreadedServer.activeConnections.decrementAndGet();
+    }
+
+    private static void closeChannel(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing channel: " + e.getMessage());
+        }
+    }
+}
+
+// finds the end of the next request in the bytes of a connection, only the framing headers are
+// looked at, the real parsing is still done by HTTPRequest. The scan position and what the headers
+// said are kept between reads, so a request that arrives in many small pieces (a chunked upload)
+// is scanned once instead of from its start on every read. Lines may end with "\r\n" or just "\n".
+class RequestFraming {
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.ISO_8859_1);
+
+    private enum Phase { HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, TRAILERS }
+
+    private Phase phase;
+    private int position; // the first byte that wasn't scanned yet
+    private boolean requestLineSeen;
+    private long contentLength;
+    private boolean chunked;
+    private long bodySize; // of the chunks so far
+    private int chunkEnd; // where the data of the current chunk ends
+
+    RequestFraming() {
+        reset();
+    }
+
+    // for the next request, after the connection took the bytes of this one
+    void reset() {
+        phase = Phase.HEAD;
+        position = 0;
+        requestLineSeen = false;
+        contentLength = 0;
+        chunked = false;
+        bodySize = 0;
+        chunkEnd = 0;
+    }
+
+    // the request timeout only covers the request line and headers, a big body may take longer to upload
+    boolean isHeadComplete() {
+        return phase != Phase.HEAD;
+    }
+
+    // returns the index right after the end of the request in the buffer, or -1 when more bytes are needed
+    int findRequestEnd(byte[] buffer, int length, ServerConfig config) throws BadRequestException, PayloadTooLargeException {
+        while (true) {
+            switch (phase) {
+                case HEAD:
+                    if (!scanHeadLine(buffer, length, config)) {
+                        return -1;
+                    }
+                    break;
+                case BODY:
+                    if (position + contentLength > length) {
+                        return -1;
+                    }
+                    return (int) (position + contentLength);
+                case CHUNK_SIZE: {
+                    int lineEnd = indexOf(buffer, position, length, (byte) '\n');
+                    if (lineEnd == -1) {
+                        return -1;
+                    }
+                    long chunkSize = parseChunkSize(buffer, position, lineEnd);
+                    position = lineEnd + 1;
+                    bodySize += chunkSize;
+                    if (bodySize > config.getMaxBodySize()) {
+                        throw new PayloadTooLargeException();
+                    }
+                    // the buffer is indexed with ints, a chunk that reaches past that can't be a real request
+                    if (position + chunkSize > Integer.MAX_VALUE) {
+                        throw new BadRequestException();
+                    }
+                    if (chunkSize == 0) {
+                        phase = Phase.TRAILERS; // skipped until the empty line
+                    } else {
+                        chunkEnd = (int) (position + chunkSize);
+                        phase = Phase.CHUNK_DATA;
+                    }
+                    break;
+                }
+                case CHUNK_DATA: {
+                    // the chunk data is followed by its own line end
+                    if (chunkEnd >= length) {
+                        return -1;
+                    }
+                    int lineEnd = indexOf(buffer, chunkEnd, length, (byte) '\n');
+                    if (lineEnd == -1) {
+                        return -1;
+                    }
+                    position = lineEnd + 1;
+                    phase = Phase.CHUNK_SIZE;
+                    break;
+                }
+                case TRAILERS: {
+                    int lineEnd = indexOf(buffer, position, length, (byte) '\n');
+                    if (lineEnd == -1) {
+                        return -1;
+                    }
+                    boolean empty = lineEnd == position || (lineEnd == position + 1 && buffer[position] == '\r');
+                    position = lineEnd + 1;
+                    if (empty) {
+                        return position;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    // returns false when the next line of the head isn't complete yet
+    private boolean scanHeadLine(byte[] buffer, int length, ServerConfig config) throws BadRequestException, PayloadTooLargeException {
+        int lineEnd = indexOf(buffer, position, length, (byte) '\n');
+        if (lineEnd == -1) {
+            // the request line and headers must fit in the limits, otherwise the request is rejected
+            if (length > config.getMaxRequestLineSize() + config.getMaxHeaderSize()) {
+                throw new BadRequestException();
+            }
+            return false;
+        }
+        int lineStart = position;
+        int contentEnd = lineEnd > lineStart && buffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+        position = lineEnd + 1;
+        if (contentEnd == lineStart) {
+            if (requestLineSeen) {
+                startBody(config); // the end of the headers
+            }
+            return true; // empty lines before a request are ignored by HTTPRequest too
+        }
+        if (!requestLineSeen) {
+            requestLineSeen = true;
+            return true;
+        }
+
+        int colon = indexOf(buffer, lineStart, contentEnd, (byte) ':');
+        if (colon == -1) {
+            return true;
+        }
+        // only the two framing headers are turned into strings
+        if (nameEquals(buffer, lineStart, colon, CONTENT_LENGTH)) {
+            try {
+                contentLength = Long.parseLong(value(buffer, colon + 1, contentEnd));
+            } catch (NumberFormatException e) {
+                throw new BadRequestException();
+            }
+        } else if (nameEquals(buffer, lineStart, colon, TRANSFER_ENCODING)) {
+            chunked = value(buffer, colon + 1, contentEnd).equalsIgnoreCase("chunked");
+        }
+        return true;
+    }
+
+    private void startBody(ServerConfig config) throws BadRequestException, PayloadTooLargeException {
+        if (chunked) {
+            phase = Phase.CHUNK_SIZE;
+            return;
+        }
+        if (contentLength < 0) {
+            throw new BadRequestException();
+        }
+        if (contentLength > config.getMaxBodySize()) {
+            throw new PayloadTooLargeException();
+        }
+        phase = Phase.BODY;
+    }
+
+    // compares the header name in buffer[start, end) (spaces around it are ignored) with a lower case name
+    private static boolean nameEquals(byte[] buffer, int start, int end, byte[] name) {
+        while (start < end && (buffer[start] == ' ' || buffer[start] == '\t')) {
+            start++;
+        }
+        while (end > start && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t')) {
+            end--;
+        }
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            byte b = buffer[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String value(byte[] buffer, int start, int end) {
+        return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1).trim();
+    }
+
+    // like RequestBody.parseChunkSize: only hex digits, so a sign ("-5", "+a") can't move us backwards.
+    // the extensions after ';' are ignored
+    private static long parseChunkSize(byte[] buffer, int start, int end) throws BadRequestException {
+        long size = 0;
+        int digits = 0;
+        for (int i = start; i < end && buffer[i] != ';'; i++) {
+            int digit = Character.digit(buffer[i], 16);
+            if (digit == -1) {
+                if (buffer[i] == ' ' || buffer[i] == '\t' || buffer[i] == '\r') {
+                    continue;
+                }
+                throw new BadRequestException();
+            }
+            size = size * 16 + digit;
+            digits++;
+            if (size > Integer.MAX_VALUE) {
+                throw new BadRequestException();
+            }
+        }
+        if (digits == 0) {
+            throw new BadRequestException();
+        }
+        return size;
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
+// the state the event loop keeps for every open connection
+class NioConnection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    final ClientHandler handler;
+    // the bytes we received and didn't handle yet
+    byte[] buffer;
+    int length;
+    // responses waiting to be written
+    final ArrayDeque<ResponsePart> pending;
+    boolean busy;
+    boolean closeAfterWrite;
+    long lastActivity; // the last read or finished response, for the keep-alive timeout
+    long lastWrite; // when the socket last became writable for the pending response, for the write timeout
+    long responseReadyTime; // System.nanoTime() when the pending response was queued, for the write metrics
+    long requestStart; // when the first of the unhandled bytes arrived, for the request timeout
+    final RequestFraming framing; // how far the next request in buffer was scanned
+
+    NioConnection(SocketChannel channel, SelectionKey key, ClientHandler handler) {
+        this.channel = channel;
+        this.key = key;
+        this.handler = handler;
+        this.buffer = new byte[4096];
+        this.length = 0;
+        this.pending = new ArrayDeque<>();
+        this.busy = false;
+        this.closeAfterWrite = false;
+        this.lastActivity = System.currentTimeMillis();
+        this.framing = new RequestFraming();
+    }
+
+    void append(ByteBuffer data) {
+        if (length == 0) {
+            requestStart = System.currentTimeMillis();
+        }
+        int needed = length + data.remaining();
+        if (needed > buffer.length) {
+            byte[] bigger = new byte[Math.max(needed, buffer.length * 2)];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+        data.get(buffer, length, data.remaining());
+        length = needed;
+    }
+
+    // removes the first count bytes from the buffer and returns them
+    byte[] take(int count) {
+        byte[] taken = new byte[count];
+        System.arraycopy(buffer, 0, taken, 0, count);
+        System.arraycopy(buffer, count, buffer, 0, length - count);
+        length -= count;
+        framing.reset();
+        // a pipelined request that is already here gets its own time from now
+        requestStart = System.currentTimeMillis();
+        return taken;
+    }
+}
+
+// the output stream the handler writes a response to when the NIO engine owns the connection.
+// the bytes are collected in memory, big files are added as references and sent by the event loop.
+class NioResponse extends ByteArrayOutputStream {
+    private final List<ResponsePart> parts = new ArrayList<>();
+
+    void addFile(Path path, long position, long count) {
+        flushBytes();
+        parts.add(new FilePart(path, position, count));
+    }
+
+    void addBuffer(ByteBuffer buffer) {
+        flushBytes();
+        parts.add(new BufferPart(buffer));
+    }
+
+    List<ResponsePart> getParts() {
+        flushBytes();
+        return parts;
+    }
+
+    private void flushBytes() {
+        if (size() > 0) {
+            parts.add(new BufferPart(ByteBuffer.wrap(toByteArray())));
+            reset();
+        }
+    }
+}
+
+// a piece of a response waiting to be written by the event loop
+abstract class ResponsePart {
+    // writes as much as the socket accepts, returns true when the whole part was written
+    abstract boolean writeTo(SocketChannel channel) throws IOException;
+
+    // called when the part won't be written anymore
+    void release() {
+    }
+}
+
+class BufferPart extends ResponsePart {
+    private final ByteBuffer buffer;
+
+    BufferPart(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    boolean writeTo(SocketChannel channel) throws IOException {
+        Metrics.instance.addBytesOut(channel.write(buffer));
+        return !buffer.hasRemaining();
+    }
+}
+
+// a region of a file that is sent with transferTo, the file is only opened when we start sending it
+class FilePart extends ResponsePart {
+    private final Path path;
+    private long position;
+    private final long end;
+    private FileChannel file;
+
+    FilePart(Path path, long position, long count) {
+        this.path = path;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    @Override
+    boolean writeTo(SocketChannel channel) throws IOException {
+        if (file == null) {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, channel);
+            if (sent == 0) {
+                if (position >= file.size()) {
+                    throw new IOException("file became shorter while sending it: " + path);
+                }
+                return false; // the socket buffer is full
+            }
+            position += sent;
+            Metrics.instance.addBytesOut(sent);
+        }
+        release();
+        return true;
+    }
+
+    @Override
+    void release() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.out.println("Error closing file " + path + ": " + e.getMessage());
+            }
+            file = null;
+        }
+    }
+}
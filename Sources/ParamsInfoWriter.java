@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// Writes params_info.html behind the POST requests. A POST only publishes the new page and wakes
+// up the writer thread, which writes the newest page to a temporary file, syncs it and moves it
+// over params_info.html, so a reader never sees a half written file and concurrent POSTs can't
+// mix their content. Pages that are replaced before the writer gets to them are never written.
+// Until the page is on the disk GET requests are answered from memory. With paramsHistoryFile
+// every POST is also appended to a history file, so the coalescing doesn't lose any of them.
+public class ParamsInfoWriter {
+    public static ParamsInfoWriter instance;
+
+    public static final String FILE_NAME = "params_info.html";
+    private static final int MAX_PENDING_HISTORY = 10_000;
+    private static final Set<PosixFilePermission> DEFAULT_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
+    private final Path file;
+    private final Path historyFile; // null without a history
+    // the newest page that isn't on the disk yet
+    private final AtomicReference<CachedFile> unwritten;
+    private final ConcurrentLinkedQueue<String> history;
+    private final AtomicInteger pendingHistory;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public static void init(ServerConfig config) {
+        instance = new ParamsInfoWriter(Paths.get(config.getRootDirectory(), FILE_NAME), config.getParamsHistoryFile());
+        instance.writer.start();
+        // what's still pending is written by close(), which the server's shutdown hook calls
+    }
+
+    public ParamsInfoWriter(Path file, String historyFile) {
+        this.file = file.toAbsolutePath().normalize();
+        this.historyFile = historyFile.isEmpty() ? null : Paths.get(historyFile).toAbsolutePath();
+        this.unwritten = new AtomicReference<>();
+        this.history = new ConcurrentLinkedQueue<>();
+        this.pendingHistory = new AtomicInteger();
+        this.writer = new Thread(this::writeLoop, "params-info-writer");
+        this.writer.setDaemon(true);
+    }
+
+    // called by the request threads, returns without touching the disk
+    public void submit(byte[] page, Map<String, String> urlParams, Map<String, String> bodyParams) {
+        unwritten.set(new CachedFile(page, MimeTypes.instance.lookup(file), System.currentTimeMillis(),
+                ConditionalRequest.strongETag(page)));
+        if (historyFile != null) {
+            // like a full access log, a writer that can't keep up loses records instead of memory
+            if (pendingHistory.incrementAndGet() <= MAX_PENDING_HISTORY) {
+                history.add(Instant.now() + " url params: " + urlParams + " body params: " + bodyParams + "\n");
+            } else {
+                pendingHistory.decrementAndGet();
+            }
+        }
+        LockSupport.unpark(writer);
+    }
+
+    // the page that a GET of path (as PathResolver resolved it) must see, or null when the file on
+    // the disk is up to date
+    public CachedFile getUnwritten(Path path) {
+        CachedFile page = unwritten.get();
+        return page != null && file.equals(path) ? page : null;
+    }
+
+    // writes what's pending and stops the writer
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            boolean stopping = closed;
+            CachedFile page = unwritten.get();
+            if (page != null) {
+                try {
+                    writeAtomically(page.getContent());
+                    // the stale entries go before the page leaves memory, so a GET in between can't
+                    // find the old file in the cache. the first write creates the file, a 404 for it
+                    // may be cached too
+                    FileCache.instance.invalidate(file);
+                    PathResolver.instance.invalidate(file);
+                    // a POST that came during the write keeps its page in memory for the next round
+                    unwritten.compareAndSet(page, null);
+                } catch (IOException e) {
+                    System.out.println("Error writing " + file + ": " + e);
+                    // we try again with the next POST instead of spinning on a broken disk
+                    unwritten.compareAndSet(page, null);
+                }
+            }
+            if (!history.isEmpty()) {
+                appendHistory();
+            }
+            if (stopping) {
+                return;
+            }
+            if (unwritten.get() == null && history.isEmpty()) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private void writeAtomically(byte[] content) throws IOException {
+        Path temporary = createTemporaryFile();
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // the temporary files are next to the page so the move stays atomic, they are never served
+    // and their changes don't invalidate anything
+    public static boolean isTemporaryFile(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith("." + FILE_NAME) && name.toString().endsWith(".tmp");
+    }
+
+    // createTempFile makes the file readable by its owner only, the page would keep that after the
+    // move. we give it the permissions of the existing page, or rw-r--r-- like a new file with the
+    // usual umask. file systems without POSIX permissions get their defaults
+    private Path createTemporaryFile() throws IOException {
+        Set<PosixFilePermission> permissions = DEFAULT_PERMISSIONS;
+        try {
+            permissions = Files.getPosixFilePermissions(file);
+        } catch (NoSuchFileException e) {
+            // the first page, we use the default
+        } catch (UnsupportedOperationException e) {
+            return Files.createTempFile(file.getParent(), "." + FILE_NAME, ".tmp");
+        }
+        Path temporary = Files.createTempFile(file.getParent(), "." + FILE_NAME, ".tmp");
+        // set after creating, the umask would otherwise remove bits of the page's permissions
+        Files.setPosixFilePermissions(temporary, permissions);
+        return temporary;
+    }
+
+    private void appendHistory() {
+        StringBuilder batch = new StringBuilder();
+        String record;
+        while ((record = history.poll()) != null) {
+            pendingHistory.decrementAndGet();
+            batch.append(record);
+        }
+        try {
+            Files.write(historyFile, batch.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("Error writing " + historyFile + ": " + e);
+        }
+    }
+}
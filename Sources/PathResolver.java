@@ -0,0 +1,175 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Maps the path of a request ("/images/a%20b.png") to a file under the root directory. The path
+// is percent-decoded, "." and ".." segments are removed (a ".." can't leave the root, it's
+// ignored at the top like before) and we check that the file exists. The result is cached by
+// the path as the client sent it, so every distinct path is decoded and checked only once.
+// Paths that don't exist are cached too, for negativeCacheTtl milliseconds, so a scanner that
+// requests many missing files costs a map lookup instead of a stat. The watcher of FileCache
+// removes the entries of files that are created or deleted; without it every entry expires
+// after negativeCacheTtl.
+public class PathResolver {
+    public static volatile PathResolver instance;
+
+    private final Path root;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, ResolvedPath> entries;
+
+    public static void init(ServerConfig config) {
+        instance = new PathResolver(config.getRootDirectory(), config.getPathCacheSize());
+    }
+
+    public PathResolver(String rootDirectory, int maxEntries) {
+        this.root = Paths.get(rootDirectory).toAbsolutePath().normalize();
+        this.maxEntries = maxEntries;
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    // requestedPage is the path of the request line without the query, config the settings of the request
+    public ResolvedPath resolve(String requestedPage, ServerConfig config) throws BadRequestException {
+        ResolvedPath resolved = entries.get(requestedPage);
+        if (resolved != null && !resolved.isExpired()) {
+            return resolved;
+        }
+        Path path = toFilePath(requestedPage, config.getDefaultPage());
+        boolean exists = !ParamsInfoWriter.isTemporaryFile(path) && Files.isRegularFile(path);
+        long expiresAt = 0; // never
+        if (!exists || !FileCache.instance.isWatching()) {
+            long ttl = config.getNegativeCacheTtl();
+            if (ttl <= 0) {
+                return new ResolvedPath(path, exists, 0); // not cached
+            }
+            expiresAt = System.nanoTime() + ttl * 1_000_000;
+        }
+        resolved = new ResolvedPath(path, exists, expiresAt);
+        if (maxEntries > 0) {
+            if (entries.size() >= maxEntries) {
+                // random paths (a scan) would grow the map without end, we start over instead
+                entries.clear();
+            }
+            entries.put(requestedPage, resolved);
+        }
+        return resolved;
+    }
+
+    // removes the entries of the path and everything under it (when a directory changed)
+    public void invalidate(Path path) {
+        path = path.toAbsolutePath().normalize();
+        Iterator<Map.Entry<String, ResolvedPath>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().getPath().startsWith(path)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // the default page can change when the config is reloaded
+    public void clear() {
+        entries.clear();
+    }
+
+    private Path toFilePath(String requestedPage, String defaultPage) throws BadRequestException {
+        String decoded = percentDecode(requestedPage);
+        List<String> segments = new ArrayList<>();
+        int segmentStart = 0;
+        for (int i = 0; i <= decoded.length(); i++) {
+            if (i < decoded.length() && decoded.charAt(i) != '/' && decoded.charAt(i) != '\\') {
+                continue;
+            }
+            String segment = decoded.substring(segmentStart, i);
+            segmentStart = i + 1;
+            if (segment.equals("..")) {
+                if (!segments.isEmpty()) {
+                    segments.remove(segments.size() - 1);
+                }
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                segments.add(segment);
+            }
+        }
+        String relative = segments.isEmpty() ? defaultPage : String.join("/", segments);
+        Path path;
+        try {
+            path = root.resolve(relative).normalize();
+        } catch (InvalidPathException e) {
+            throw new BadRequestException(); // a character the file system doesn't allow in names
+        }
+        // the segments can't climb out of the root, this also catches what a platform treats as absolute
+        if (!path.startsWith(root)) {
+            throw new BadRequestException();
+        }
+        return path;
+    }
+
+    // %XX sequences are bytes of UTF-8 (RFC 3986), a '+' stays a '+' in a path. the request line was
+    // read as ISO-8859-1, so UTF-8 that a client sent without escaping it is decoded here too
+    private static String percentDecode(String value) throws BadRequestException {
+        boolean plain = true;
+        for (int i = 0; i < value.length() && plain; i++) {
+            char c = value.charAt(i);
+            plain = c != '%' && c < 0x80;
+        }
+        if (plain) {
+            return value;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '%') {
+                bytes.write(c);
+                continue;
+            }
+            if (i + 2 >= value.length()) {
+                throw new BadRequestException();
+            }
+            int high = Character.digit(value.charAt(i + 1), 16);
+            int low = Character.digit(value.charAt(i + 2), 16);
+            if (high == -1 || low == -1 || (high == 0 && low == 0)) {
+                throw new BadRequestException(); // not a hex number, or a NUL that would cut the file name
+            }
+            bytes.write(high * 16 + low);
+            i += 2;
+        }
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes.toByteArray()))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            throw new BadRequestException();
+        }
+    }
+}
+
+// a request path mapped to its file, exists is false for a cached 404
+class ResolvedPath {
+    private final Path path;
+    private final boolean exists;
+    private final long expiresAt; // System.nanoTime() value, 0 when only an invalidation removes it
+
+    ResolvedPath(Path path, boolean exists, long expiresAt) {
+        this.path = path;
+        this.exists = exists;
+        this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired() {
+        return expiresAt != 0 && System.nanoTime() - expiresAt > 0;
+    }
+
+    public Path getPath() { return path; }
+    public boolean exists() { return exists; }
+}
@@ -0,0 +1,6 @@
+import java.io.IOException;
+
+// thrown while reading a request body that is bigger than maxBodySize, answered with 413.
+// it's an IOException because it comes out of InputStream.read
+public class PayloadTooLargeException extends IOException {
+}
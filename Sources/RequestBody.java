@@ -0,0 +1,147 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// The body of a request as a stream, so handlers consume it while it arrives instead of
+// the whole body being buffered first. It decodes the chunked transfer encoding and throws
+// PayloadTooLargeException when the body goes over maxBodySize.
+public class RequestBody extends InputStream {
+    private final RequestReader reader;
+    private final boolean chunked;
+    private final long maxSize;
+    private final int maxLineSize; // of the chunk size lines and trailers
+    private long remaining; // bytes left in the body, or in the current chunk when chunked
+    private long total; // bytes of body data read so far
+    private final byte[] single = new byte[1]; // for read()
+    private boolean finished;
+
+    // contentLength is ignored for chunked bodies
+    public RequestBody(RequestReader reader, boolean chunked, long contentLength, long maxSize, int maxLineSize) {
+        this.reader = reader;
+        this.chunked = chunked;
+        this.maxSize = maxSize;
+        this.maxLineSize = maxLineSize;
+        this.remaining = chunked ? 0 : contentLength;
+        this.total = 0;
+        this.finished = !chunked && contentLength == 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] destination, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (finished) {
+            return -1;
+        }
+        if (remaining == 0) {
+            if (!chunked || !nextChunk()) {
+                finished = true;
+                return -1;
+            }
+        }
+
+        int read = reader.read(destination, offset, (int) Math.min(length, remaining));
+        if (read == -1) {
+            throw new EOFException(); // the client closed the connection in the middle of the body
+        }
+        remaining -= read;
+        total += read;
+        if (total > maxSize) {
+            throw new PayloadTooLargeException();
+        }
+        if (chunked && remaining == 0) {
+            skipChunkEnd();
+        }
+        if (!chunked && remaining == 0) {
+            finished = true;
+        }
+        return read;
+    }
+
+    public long getBytesRead() {
+        return total;
+    }
+
+    // reads and drops the rest of the body, so the next request on the connection can be parsed
+    public void discard() throws IOException {
+        byte[] skipped = new byte[8 * 1024];
+        while (read(skipped, 0, skipped.length) != -1) {
+            // nothing to do with the bytes
+        }
+    }
+
+    // reads the size line of the next chunk. returns false after the last chunk (and its trailers)
+    private boolean nextChunk() throws IOException {
+        int lineEnd = fillLine(maxLineSize);
+        int chunkLength = parseChunkSize(reader.getBuffer(), reader.getPosition(),
+                HTTPRequest.contentEnd(reader.getBuffer(), reader.getPosition(), lineEnd));
+        reader.consumeLine(lineEnd);
+        if (chunkLength > 0) {
+            remaining = chunkLength;
+            return true;
+        }
+
+        // we don't use trailer fields, they are skipped until the empty line that ends the body
+        while (true) {
+            lineEnd = fillLine(maxLineSize);
+            boolean empty = HTTPRequest.contentEnd(reader.getBuffer(), reader.getPosition(), lineEnd) == reader.getPosition();
+            reader.consumeLine(lineEnd);
+            if (empty) {
+                return false;
+            }
+        }
+    }
+
+    // the '\r\n' after the data of a chunk
+    private void skipChunkEnd() throws IOException {
+        int lineEnd = fillLine(maxLineSize);
+        if (HTTPRequest.contentEnd(reader.getBuffer(), reader.getPosition(), lineEnd) != reader.getPosition()) {
+            throw new BadRequestBodyException("missing line end after a chunk");
+        }
+        reader.consumeLine(lineEnd);
+    }
+
+    private int fillLine(int maxLineSize) throws IOException {
+        int lineEnd;
+        try {
+            lineEnd = reader.fillLine(maxLineSize);
+        } catch (BadRequestException e) {
+            throw new BadRequestBodyException("chunk line too long");
+        }
+        if (lineEnd == -1) {
+            throw new EOFException();
+        }
+        return lineEnd;
+    }
+
+    // the chunk size is in hex and may be followed by ";extensions" which we ignore
+    private static int parseChunkSize(byte[] buffer, int start, int end) throws IOException {
+        long size = 0;
+        int digits = 0;
+        for (int i = start; i < end && buffer[i] != ';'; i++) {
+            int digit = Character.digit(buffer[i], 16);
+            if (digit == -1) {
+                if (buffer[i] == ' ' || buffer[i] == '\t') {
+                    continue;
+                }
+                throw new BadRequestBodyException("bad chunk size");
+            }
+            size = size * 16 + digit;
+            digits++;
+            if (size > Integer.MAX_VALUE) {
+                throw new PayloadTooLargeException();
+            }
+        }
+        if (digits == 0) {
+            throw new BadRequestBodyException("bad chunk size");
+        }
+        return (int) size;
+    }
+}
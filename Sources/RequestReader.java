@@ -0,0 +1,120 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Buffered byte reader for the requests of one connection.
+// The buffer is reused by all the requests on the connection, HTTPRequest parses the
+// request line and the headers straight from it, and bytes that were read after the end
+// of a request (pipelining) stay in the buffer for the next one.
+public class RequestReader {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int position; // the next byte to parse
+    private int limit; // the end of the bytes we have read
+    private long headTimeout; // in nanoseconds, 0 while we aren't reading a request head
+    private long headDeadline; // System.nanoTime() value, 0 until the first byte of the head arrived
+
+    public RequestReader(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[INITIAL_BUFFER_SIZE];
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    // the request line and headers that are read from now on must arrive within timeoutMillis.
+    // the time starts with their first byte, an idle keep-alive connection is limited by the socket timeout
+    public void startHead(long timeoutMillis) {
+        headTimeout = timeoutMillis * 1_000_000;
+        headDeadline = position < limit && headTimeout > 0 ? System.nanoTime() + headTimeout : 0;
+    }
+
+    public void endHead() {
+        headTimeout = 0;
+    }
+
+    // makes sure a whole line (ending with '\n') starting at the current position is in the buffer.
+    // returns the index of its '\n', or -1 when the stream ended before any byte of the line.
+    public int fillLine(int maxLength) throws IOException, BadRequestException {
+        int scanned = 0; // bytes after the position that we already checked
+        while (true) {
+            for (int i = position + scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    if (i - position > maxLength) {
+                        throw new BadRequestException();
+                    }
+                    return i;
+                }
+            }
+            scanned = limit - position;
+            if (scanned > maxLength) {
+                throw new BadRequestException();
+            }
+            if (!fill()) {
+                if (limit == position) {
+                    return -1;
+                }
+                throw new EOFException(); // the connection was closed in the middle of a line
+            }
+        }
+    }
+
+    // moves the position after a line returned by fillLine
+    public void consumeLine(int lineEnd) {
+        position = lineEnd + 1;
+    }
+
+    // reads up to length bytes, first from the buffer and then from the stream. returns -1 at the end of the stream
+    public int read(byte[] destination, int offset, int length) throws IOException {
+        if (position < limit) {
+            int buffered = Math.min(length, limit - position);
+            System.arraycopy(buffer, position, destination, offset, buffered);
+            position += buffered;
+            return buffered;
+        }
+        int read = in.read(destination, offset, length);
+        if (read > 0) {
+            Metrics.instance.addBytesIn(read);
+        }
+        return read;
+    }
+
+    // reads more bytes from the stream, returns false at the end of the stream
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            // the parsed bytes aren't needed anymore, the unparsed ones go to the start of the buffer
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            byte[] bigger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, bigger, 0, limit);
+            buffer = bigger;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            return false;
+        }
+        limit += read;
+        Metrics.instance.addBytesIn(read);
+        if (headTimeout > 0) {
+            long now = System.nanoTime();
+            if (headDeadline == 0) {
+                headDeadline = now + headTimeout;
+            } else if (now - headDeadline > 0) {
+                throw new RequestTimeoutException();
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,6 @@
+import java.net.SocketTimeoutException;
+
+// thrown when the request line and headers didn't arrive within requestTimeout, answered with 408.
+// a client that sends its headers slowly would otherwise hold a thread for as long as it likes
+public class RequestTimeoutException extends SocketTimeoutException {
+}
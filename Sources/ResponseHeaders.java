@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Builds the status line and the headers of a response in a byte buffer that is reused for all
+// the responses of a connection. Status lines, header names and the Connection headers are
+// encoded once, values are copied without creating strings, and the Date header is formatted
+// once per second. The headers (and a small body) are written to the socket in one write, and
+// the text for the access log is only built when the request was sampled.
+public class ResponseHeaders {
+    public static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    public static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    public static final byte[] CONTENT_RANGE = ascii("Content-Range: ");
+    public static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    public static final byte[] ACCEPT_RANGES_BYTES = ascii("Accept-Ranges: bytes\r\n");
+    public static final byte[] ETAG = ascii("ETag: ");
+    public static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+    public static final byte[] CACHE_CONTROL_MAX_AGE = ascii("Cache-Control: max-age=");
+    public static final byte[] CACHE_CONTROL_NO_STORE = ascii("Cache-Control: no-store\r\n");
+    public static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // bodies up to this size are copied after the headers so both leave in the same write
+    private static final int SMALL_BODY_SIZE = 8 * 1024;
+
+    // the encoded status lines by status code, with the reason phrase they were built for
+    private static final StatusLine[] statusLines = new StatusLine[600];
+    private static volatile CachedDate cachedDate = new CachedDate(0, new byte[0]);
+
+    private byte[] buffer;
+    private int length;
+    private int status;
+    private long contentLength; // -1 when the response has no Content-Length header
+
+    public ResponseHeaders() {
+        this.buffer = new byte[INITIAL_BUFFER_SIZE];
+        this.length = 0;
+        this.status = 0;
+        this.contentLength = -1;
+    }
+
+    // starts a new response, anything that wasn't written is dropped
+    public ResponseHeaders start(int statusCode, String reasonPhrase) {
+        length = 0;
+        status = statusCode;
+        contentLength = -1;
+        append(statusLine(statusCode, reasonPhrase));
+        return this;
+    }
+
+    // name is one of the constants above, with the ": "
+    public ResponseHeaders add(byte[] name, String value) {
+        append(name);
+        appendAscii(value);
+        append(CRLF);
+        return this;
+    }
+
+    public ResponseHeaders add(byte[] name, long value) {
+        append(name);
+        appendNumber(value);
+        append(CRLF);
+        return this;
+    }
+
+    public ResponseHeaders contentLength(long value) {
+        contentLength = value;
+        return add(CONTENT_LENGTH, value);
+    }
+
+    // complete header lines, each ending with "\r\n"
+    public ResponseHeaders addLines(byte[] lines) {
+        append(lines);
+        return this;
+    }
+
+    public ResponseHeaders addLines(String lines) {
+        appendAscii(lines);
+        return this;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    // adds the Connection and Date headers and the empty line, and writes the head of the response.
+    // log is null when the request isn't sampled for the header dump of the access log
+    public void writeTo(OutputStream out, boolean keepAlive, StringBuilder log) throws IOException {
+        writeTo(out, keepAlive, log, null);
+    }
+
+    // like writeTo, a small body is sent in the same write as the headers
+    public void writeTo(OutputStream out, boolean keepAlive, StringBuilder log, byte[] body) throws IOException {
+        append(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        append(dateHeader());
+        if (log != null) {
+            appendToLog(log);
+        }
+        append(CRLF);
+        if (body != null && body.length <= SMALL_BODY_SIZE) {
+            append(body, body.length);
+            out.write(buffer, 0, length);
+        } else {
+            out.write(buffer, 0, length);
+            if (body != null) {
+                out.write(body);
+            }
+        }
+        length = 0;
+    }
+
+    // the headers as the old logs showed them: every line starts with "< "
+    private void appendToLog(StringBuilder log) {
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                log.append("< ");
+                for (int j = lineStart; j <= i; j++) {
+                    log.append((char) (buffer[j] & 0xff));
+                }
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    private static byte[] statusLine(int statusCode, String reasonPhrase) {
+        StatusLine line = statusCode >= 0 && statusCode < statusLines.length ? statusLines[statusCode] : null;
+        if (line != null && line.reasonPhrase.equals(reasonPhrase)) {
+            return line.bytes;
+        }
+        byte[] bytes = ascii("HTTP/1.1 " + statusCode + " " + reasonPhrase + "\r\n");
+        if (statusCode >= 0 && statusCode < statusLines.length) {
+            // a race only builds the same line twice
+            statusLines[statusCode] = new StatusLine(reasonPhrase, bytes);
+        }
+        return bytes;
+    }
+
+    // HTTP dates have a resolution of one second, so all the responses of a second share one line
+    private static byte[] dateHeader() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = cachedDate;
+        if (date.second != second) {
+            date = new CachedDate(second, ascii("Date: " + Util.formatHttpDate(second * 1000) + "\r\n"));
+            cachedDate = date;
+        }
+        return date.bytes;
+    }
+
+    private void append(byte[] bytes) {
+        append(bytes, bytes.length);
+    }
+
+    private void append(byte[] bytes, int count) {
+        ensureCapacity(count);
+        System.arraycopy(bytes, 0, buffer, length, count);
+        length += count;
+    }
+
+    // header values are ISO-8859-1, other characters can't be sent and become '?'
+    private void appendAscii(String value) {
+        int count = value.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            buffer[length++] = c <= 0xff ? (byte) c : (byte) '?';
+        }
+    }
+
+    private void appendNumber(long value) {
+        if (value < 0) {
+            ensureCapacity(1);
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static class StatusLine {
+        final String reasonPhrase;
+        final byte[] bytes;
+
+        StatusLine(String reasonPhrase, byte[] bytes) {
+            this.reasonPhrase = reasonPhrase;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class CachedDate {
+        final long second;
+        final byte[] bytes;
+
+        CachedDate(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -2,25 +2,229 @@ import java.io.*;
 import java.util.*;
 import java.nio.file.Paths;
 
+// An immutable snapshot of config.ini. reload() reads the file again and swaps instance, so a
+// request that keeps a reference sees one consistent set of settings. Settings in
+// RESTART_SETTINGS are only read at startup, a reload keeps their old values.
 public class ServerConfig {
-    public static ServerConfig instance;
-    private int port;
-    private String rootDirectory;
-    private String defaultPage;
-    private int maxThreads;
+    public static volatile ServerConfig instance;
+    private static String configFilePath;
+
+    private static final List<String> RESTART_SETTINGS = List.of(
+            "port", "root", "maxThreads", "engine", "nioEventLoops", "threading", "maxConnections", "backlog",
+            "cacheMaxBytes", "cacheMaxEntrySize", "logFile", "logFormat", "logBufferSize", "logWhenFull",
+            "logFlushInterval", "logMaxFileSize", "logMaxFiles", "reloadConfig", "queueSize",
+            "acceptorThreads", "reusePort", "paramsHistoryFile", "pathCacheSize");
+    // the caps of the settings that size a buffer of every connection or response
+    private static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_HEAD_SIZE = 16 * 1024 * 1024;
+
+    private final Properties properties;
+    private final int port;
+    private final String rootDirectory;
+    private final String defaultPage;
+    private final int maxThreads;
+    private final int keepAliveTimeout; // in milliseconds, at least 1 since 0 would disable the socket timeout
+    private final int maxKeepAliveRequests;
+    private final String engine; // "blocking" (thread per connection) or "nio" (selector event loops)
+    private final int nioEventLoops;
+    private final String threading; // "platform" (fixed pool of maxThreads) or "virtual" (a virtual thread per connection)
+    private final int maxConnections;
+    private final int retryAfter; // in seconds, sent with 503 responses
+    private final long cacheMaxBytes; // total size of the in-memory file cache, 0 disables it
+    private final long cacheMaxEntrySize; // bigger files are always read from disk
+    private final long zeroCopyThreshold; // files from this size are sent with transferTo instead of being read to memory
+    private final boolean mappedFiles; // send big files from shared memory-mapped buffers
+    private final boolean compression; // gzip/deflate responses for clients that accept them
+    private final int compressionMinSize; // smaller files are not worth compressing
+    private final String mimeTypesFile; // extra content types in the mime.types format, empty for the built-in ones only
+    private final String defaultCharset; // the charset parameter of text types, empty leaves it out
+    private final String paramsHistoryFile; // every POST is appended to it, empty disables it
+    private final int pathCacheSize; // the most request paths PathResolver remembers, 0 disables the cache
+    private final long negativeCacheTtl; // in milliseconds, how long a missing file is remembered, 0 disables it
+    private final int maxRequestLineSize; // in bytes, also the limit for a chunk size line
+    private final int maxHeaderSize; // all the header lines together, in bytes
+    private final int maxHeaderCount;
+    private final long maxBodySize;
+    private final String logFile;
+    private final String logFormat;
+    private final double logHeaderSampleRate;
+    private final int logBufferSize;
+    private final String logWhenFull;
+    private final long logFlushInterval;
+    private final long logMaxFileSize;
+    private final int logMaxFiles;
+    private final String metricsPath;
+    private final int chunkSize;
+    private final int outputBufferSize;
+    private final int backlog; // pending connections the kernel queues for accept(), 0 for the JVM default
+    private final boolean tcpNoDelay;
+    private final int receiveBufferSize; // SO_RCVBUF in bytes, 0 keeps the OS default
+    private final int sendBufferSize; // SO_SNDBUF in bytes, 0 keeps the OS default
+    private final boolean reloadConfig; // watch config.ini and reload it when it changes (and on SIGHUP)
+    private final int acceptorThreads; // threads that accept new connections
+    private final boolean reusePort; // every acceptor listens on its own socket with SO_REUSEPORT
+    private final int queueSize; // tasks waiting for a pool thread, 0 means a task is only taken when a thread is free
+    private final String rejectionPolicy; // "reject" (503) or "callerRuns" (the acceptor serves the connection itself)
+    private final long maxQueueTime; // in milliseconds, work that waited longer is answered with 503, 0 disables it
+    private final long requestTimeout; // in milliseconds, the time a client has to send the request line and headers
+    private final long writeTimeout; // in milliseconds, the longest a write may make no progress
+    private final long shutdownTimeout; // in milliseconds, how long a shutdown waits for requests in flight
+    // Cache-Control max-age in seconds by content type ("image/png"), major type ("image") or "default"
+    private final Map<String, Integer> cacheMaxAges;
 
     public static void init(String configFilePath) throws Exception{
+        ServerConfig.configFilePath = configFilePath;
         instance = new ServerConfig(configFilePath);
     } 
 
-    public ServerConfig(String configFilePath) throws Exception{
+    // reads config.ini again and swaps the snapshot. returns the new snapshot, or null when the
+    // file can't be read or has an invalid value, then the running settings stay as they are
+    public static synchronized ServerConfig reload() {
+        ServerConfig current = instance;
+        Properties prop;
+        ServerConfig next;
+        try {
+            prop = load(configFilePath);
+            for (String name : RESTART_SETTINGS) {
+                String oldValue = current.properties.getProperty(name);
+                String newValue = prop.getProperty(name);
+                if (!Objects.equals(oldValue, newValue)) {
+                    System.out.println("config: " + name + " only changes after a restart");
+                    if (oldValue == null) {
+                        prop.remove(name);
+                    } else {
+                        prop.setProperty(name, oldValue);
+                    }
+                }
+            }
+            next = new ServerConfig(prop);
+        } catch (Exception e) {
+            System.out.println("config: failed reloading " + configFilePath + ", keeping the running settings (" + e + ")");
+            return null;
+        }
+        instance = next;
+        return next;
+    }
+
+    public static String getConfigFilePath() { return configFilePath; }
+
+    private static Properties load(String configFilePath) throws IOException {
         Properties prop = new Properties();
-        prop.load(new FileInputStream(configFilePath));
+        try (InputStream in = new FileInputStream(configFilePath)) {
+            prop.load(in);
+        }
+        return prop;
+    }
+
+    public ServerConfig(String configFilePath) throws Exception{
+        this(load(configFilePath));
+    }
 
-        port = Integer.parseInt(prop.getProperty("port"));
+    public ServerConfig(Properties prop) throws Exception{
+        properties = prop;
+        port = getIntProperty(prop, "port", 0, 1, 65535);
         rootDirectory = getRootDirectory(prop.getProperty("root"));
         defaultPage = prop.getProperty("defaultPage");
-        maxThreads = Integer.parseInt(prop.getProperty("maxThreads"));
+        maxThreads = getIntProperty(prop, "maxThreads", 0, 1, Integer.MAX_VALUE);
+        keepAliveTimeout = getIntProperty(prop, "keepAliveTimeout", 5000, 1, Integer.MAX_VALUE);
+        maxKeepAliveRequests = getIntProperty(prop, "maxKeepAliveRequests", 100, 1, Integer.MAX_VALUE);
+        engine = prop.getProperty("engine", "blocking").trim().toLowerCase();
+        nioEventLoops = getIntProperty(prop, "nioEventLoops", Runtime.getRuntime().availableProcessors(), 1, 1024);
+        threading = prop.getProperty("threading", "platform").trim().toLowerCase();
+        // with platform threads we don't admit more connections than we have threads
+        maxConnections = getIntProperty(prop, "maxConnections", threading.equals("virtual") ? 10000 : maxThreads,
+                1, Integer.MAX_VALUE);
+        retryAfter = getIntProperty(prop, "retryAfter", 1, 0, Integer.MAX_VALUE);
+        cacheMaxBytes = getLongProperty(prop, "cacheMaxBytes", 64L * 1024 * 1024, 0);
+        cacheMaxEntrySize = getLongProperty(prop, "cacheMaxEntrySize", 1024 * 1024, 0);
+        zeroCopyThreshold = getLongProperty(prop, "zeroCopyThreshold", 256 * 1024, 0);
+        mappedFiles = Boolean.parseBoolean(prop.getProperty("mappedFiles", "false").trim());
+        compression = Boolean.parseBoolean(prop.getProperty("compression", "true").trim());
+        compressionMinSize = getIntProperty(prop, "compressionMinSize", 256, 0, Integer.MAX_VALUE);
+        mimeTypesFile = prop.getProperty("mimeTypesFile", "").trim();
+        defaultCharset = prop.getProperty("defaultCharset", "utf-8").trim();
+        paramsHistoryFile = prop.getProperty("paramsHistoryFile", "").trim();
+        pathCacheSize = getIntProperty(prop, "pathCacheSize", 10000, 0, Integer.MAX_VALUE);
+        negativeCacheTtl = getLongProperty(prop, "negativeCacheTtl", 2000, 0);
+        maxRequestLineSize = getIntProperty(prop, "maxRequestLineSize", 8 * 1024, 16, MAX_HEAD_SIZE);
+        maxHeaderSize = getIntProperty(prop, "maxHeaderSize", 64 * 1024, 1, MAX_HEAD_SIZE);
+        maxHeaderCount = getIntProperty(prop, "maxHeaderCount", 100, 1, Integer.MAX_VALUE);
+        long bodySize = getLongProperty(prop, "maxBodySize", 10L * 1024 * 1024, 0);
+        // the nio engine buffers a whole request, body included, in an int indexed array per connection
+        if (engine.equals("nio") && bodySize > MAX_BUFFER_SIZE) {
+            System.out.println("config: maxBodySize=" + bodySize + " is too big for the nio engine, using " + MAX_BUFFER_SIZE);
+            bodySize = MAX_BUFFER_SIZE;
+        }
+        maxBodySize = bodySize;
+        logFile = prop.getProperty("logFile", "").trim();
+        logFormat = prop.getProperty("logFormat", "common").trim().toLowerCase();
+        logHeaderSampleRate = Double.parseDouble(prop.getProperty("logHeaderSampleRate", "0").trim());
+        if (!(logHeaderSampleRate >= 0 && logHeaderSampleRate <= 1)) {
+            throw new IllegalArgumentException("logHeaderSampleRate must be between 0 and 1");
+        }
+        logBufferSize = getIntProperty(prop, "logBufferSize", 8192, 1, 1 << 20);
+        logWhenFull = prop.getProperty("logWhenFull", "drop").trim().toLowerCase();
+        logFlushInterval = getLongProperty(prop, "logFlushInterval", 1000, 0);
+        logMaxFileSize = getLongProperty(prop, "logMaxFileSize", 10L * 1024 * 1024, 1);
+        logMaxFiles = getIntProperty(prop, "logMaxFiles", 5, 0, 1000);
+        metricsPath = prop.getProperty("metricsPath", "/__metrics").trim();
+        chunkSize = getIntProperty(prop, "chunkSize", 32 * 1024, 1, MAX_BUFFER_SIZE);
+        outputBufferSize = getIntProperty(prop, "outputBufferSize", 64 * 1024, 1, MAX_BUFFER_SIZE);
+        backlog = getIntProperty(prop, "backlog", 0, 0, Integer.MAX_VALUE);
+        tcpNoDelay = Boolean.parseBoolean(prop.getProperty("tcpNoDelay", "true").trim());
+        receiveBufferSize = getIntProperty(prop, "receiveBufferSize", 0, 0, Integer.MAX_VALUE);
+        sendBufferSize = getIntProperty(prop, "sendBufferSize", 0, 0, Integer.MAX_VALUE);
+        reloadConfig = Boolean.parseBoolean(prop.getProperty("reloadConfig", "true").trim());
+        acceptorThreads = getIntProperty(prop, "acceptorThreads", 1, 1, 64);
+        reusePort = Boolean.parseBoolean(prop.getProperty("reusePort", "false").trim());
+        queueSize = getIntProperty(prop, "queueSize", 100, 0, Integer.MAX_VALUE);
+        rejectionPolicy = prop.getProperty("rejectionPolicy", "reject").trim().toLowerCase();
+        maxQueueTime = getLongProperty(prop, "maxQueueTime", 1000, 0);
+        requestTimeout = getLongProperty(prop, "requestTimeout", 10000, 0);
+        writeTimeout = getLongProperty(prop, "writeTimeout", 30000, 0);
+        shutdownTimeout = getLongProperty(prop, "shutdownTimeout", 10000, 0);
+        Map<String, Integer> maxAges = new HashMap<>();
+        for (String name : prop.stringPropertyNames()) {
+            if (name.startsWith("cacheMaxAge.")) {
+                maxAges.put(name.substring("cacheMaxAge.".length()).toLowerCase(), getIntProperty(prop, name, -1));
+            }
+        }
+        cacheMaxAges = Collections.unmodifiableMap(maxAges);
+    }
+
+    // optional settings fall back to a default value when they are missing from config.ini
+    private static int getIntProperty(Properties prop, String name, int defaultValue) {
+        String value = prop.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    // a value below min is an error, so the server doesn't start and a reload keeps the running
+    // settings. a value above max would only waste memory per connection, we lower it to max
+    private static int getIntProperty(Properties prop, String name, int defaultValue, int min, int max) {
+        int value = getIntProperty(prop, name, defaultValue);
+        if (value < min) {
+            throw new IllegalArgumentException(name + " must be at least " + min + ", not " + value);
+        }
+        if (value > max) {
+            System.out.println("config: " + name + "=" + value + " is too big, using " + max);
+            return max;
+        }
+        return value;
+    }
+
+    private static long getLongProperty(Properties prop, String name, long defaultValue, long min) {
+        String value = prop.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        long parsed = Long.parseLong(value.trim());
+        if (parsed < min) {
+            throw new IllegalArgumentException(name + " must be at least " + min + ", not " + parsed);
+        }
+        return parsed;
     }
 
     private String getRootDirectory(String configRootPath) {
@@ -36,4 +240,75 @@ public class ServerConfig {
     public String getRootDirectory() { return rootDirectory; }
     public String getDefaultPage() { return defaultPage; }
     public int getMaxThreads() { return maxThreads; }
+    public int getKeepAliveTimeout() { return keepAliveTimeout; }
+    public int getMaxKeepAliveRequests() { return maxKeepAliveRequests; }
+    public String getEngine() { return engine; }
+    public int getNioEventLoops() { return nioEventLoops; }
+    public String getThreading() { return threading; }
+    public int getMaxConnections() { return maxConnections; }
+    public int getRetryAfter() { return retryAfter; }
+    public long getCacheMaxBytes() { return cacheMaxBytes; }
+    public long getCacheMaxEntrySize() { return cacheMaxEntrySize; }
+    public long getZeroCopyThreshold() { return zeroCopyThreshold; }
+    public boolean isMappedFiles() { return mappedFiles; }
+    public boolean isCompression() { return compression; }
+    public int getCompressionMinSize() { return compressionMinSize; }
+    public String getMimeTypesFile() { return mimeTypesFile; }
+    public String getDefaultCharset() { return defaultCharset; }
+    public String getParamsHistoryFile() { return paramsHistoryFile; }
+    public int getPathCacheSize() { return pathCacheSize; }
+    public long getNegativeCacheTtl() { return negativeCacheTtl; }
+    public int getMaxRequestLineSize() { return maxRequestLineSize; }
+    public int getMaxHeaderSize() { return maxHeaderSize; }
+    public int getMaxHeaderCount() { return maxHeaderCount; }
+    public long getMaxBodySize() { return maxBodySize; }
+    // an empty logFile means the access log goes to stdout
+    public String getLogFile() { return logFile; }
+    // "common" or "combined"
+    public String getLogFormat() { return logFormat; }
+    // the fraction of the requests that are logged with all their request and response headers
+    public double getLogHeaderSampleRate() { return logHeaderSampleRate; }
+    public int getLogBufferSize() { return logBufferSize; }
+    // "drop" loses records when the log buffer is full, "block" makes the request wait
+    public String getLogWhenFull() { return logWhenFull; }
+    public long getLogFlushInterval() { return logFlushInterval; }
+    public long getLogMaxFileSize() { return logMaxFileSize; }
+    public int getLogMaxFiles() { return logMaxFiles; }
+    // the path that serves the metrics in the Prometheus text format, empty to disable it
+    public String getMetricsPath() { return metricsPath; }
+    // the data size of the chunks of chunked responses
+    public int getChunkSize() { return chunkSize; }
+    // the buffer between a response and the socket in the blocking engine
+    public int getOutputBufferSize() { return outputBufferSize; }
+    public int getBacklog() { return backlog; }
+    public boolean isTcpNoDelay() { return tcpNoDelay; }
+    public int getReceiveBufferSize() { return receiveBufferSize; }
+    public int getSendBufferSize() { return sendBufferSize; }
+    public boolean isReloadConfig() { return reloadConfig; }
+    public int getAcceptorThreads() { return acceptorThreads; }
+    public boolean isReusePort() { return reusePort; }
+    public int getQueueSize() { return queueSize; }
+    // "reject" or "callerruns" (lower case), the NIO engine always rejects
+    public String getRejectionPolicy() { return rejectionPolicy; }
+    public long getMaxQueueTime() { return maxQueueTime; }
+    public long getRequestTimeout() { return requestTimeout; }
+    public long getWriteTimeout() { return writeTimeout; }
+    public long getShutdownTimeout() { return shutdownTimeout; }
+
+    // returns -1 when no Cache-Control header should be sent for this content type
+    public int getCacheMaxAge(String contentType) {
+        String type = contentType.toLowerCase();
+        int parameters = type.indexOf(';');
+        if (parameters != -1) {
+            type = type.substring(0, parameters).trim();
+        }
+        Integer maxAge = cacheMaxAges.get(type);
+        if (maxAge == null && type.indexOf('/') != -1) {
+            maxAge = cacheMaxAges.get(type.substring(0, type.indexOf('/')));
+        }
+        if (maxAge == null) {
+            maxAge = cacheMaxAges.get("default");
+        }
+        return maxAge == null ? -1 : maxAge;
+    }
 }
\ No newline at end of file
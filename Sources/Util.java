@@ -1,58 +1,118 @@
-import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
-
-public class Util {
-  public static byte[] StringToBytes(String s) {
-    return s.getBytes(StandardCharsets.UTF_8);
-  }
-    static final Object lock = new Object();
-
-    public static void writeToByteStreamAndLog(StringBuilder log, OutputStream out, String s) throws IOException {
-      out.write(StringToBytes(s));
-      log.append("< ").append(s);
-    }
-
-    public static void printLogsToServer(StringBuilder log) {
-        synchronized (lock) {
-            System.out.print(log.toString());
-        }
-    }
-
-  public static byte[] charArrayToBytes(char[] chars) {
-    byte[] bytes = new byte[chars.length];
-    
-    for (int i = 0; i < chars.length; i++) {
-      bytes[i] = (byte)chars[i];
-    }
-    return bytes;
-  } 
-
-  public static Map<String, String> parseParameters(String queryString) throws BadRequestException {
-    Map<String, String> params = new HashMap<String, String>();
-    String[] pairs = queryString.split("&");
-    for (String pair : pairs) {
-        if (pair.length() == 0) {
-          continue;
-        }
-        String[] keyValue = pair.split("=");
-          
-        if (keyValue.length > 2 || 
-            // Workaround weird java 'split' behaviour 
-            (keyValue.length == 1 && pair.charAt(pair.length() - 1) != '=')
-          ) {
-            throw new BadRequestException();
-        }
-
-        if (keyValue.length == 2) {
-          params.put(keyValue[0], keyValue[1]);
-        } else {
-          params.put(keyValue[0], "");
-        }
-    }
-
-    return params;
-}
-}
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class Util {
+  public static byte[] StringToBytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+    // log is null when the request isn't sampled for the header dump of the access log
+    public static void writeToByteStreamAndLog(StringBuilder log, OutputStream out, String s) throws IOException {
+      out.write(StringToBytes(s));
+      if (log != null) {
+        log.append("< ").append(s);
+      }
+    }
+
+  public static Map<String, String> parseParameters(String queryString) throws BadRequestException {
+    Map<String, String> params = new HashMap<String, String>();
+    String[] pairs = queryString.split("&");
+    for (String pair : pairs) {
+        if (pair.length() == 0) {
+          continue;
+        }
+        String[] keyValue = pair.split("=");
+          
+        if (keyValue.length > 2 || 
+            // Workaround weird java 'split' behaviour 
+            (keyValue.length == 1 && pair.charAt(pair.length() - 1) != '=')
+          ) {
+            throw new BadRequestException();
+        }
+
+        if (keyValue.length == 0) {
+          params.put("", ""); // only '=' in the pair
+        } else if (keyValue.length == 2) {
+          params.put(keyValue[0], keyValue[1]);
+        } else {
+          params.put(keyValue[0], "");
+        }
+    }
+
+    return params;
+}
+
+  // the same rules as the String version, but the pairs are parsed while the body is read,
+  // so a big form body is never held in memory as one string
+  public static Map<String, String> parseParameters(InputStream in) throws IOException, BadRequestException {
+    Map<String, String> params = new HashMap<String, String>();
+    ByteArrayOutputStream key = new ByteArrayOutputStream();
+    ByteArrayOutputStream value = new ByteArrayOutputStream();
+    boolean inValue = false;
+    boolean valueEnded = false; // after a second '=', like split() only more '=' may follow ("a=b==")
+    byte[] buffer = new byte[8 * 1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      for (int i = 0; i < read; i++) {
+        byte b = buffer[i];
+        if (b == '&') {
+          addParameter(params, key, value, inValue);
+          inValue = false;
+          valueEnded = false;
+        } else if (b == '=') {
+          valueEnded = inValue;
+          inValue = true;
+        } else if (valueEnded) {
+          throw new BadRequestException(); // "a=b=c" or "a==b"
+        } else if (inValue) {
+          value.write(b);
+        } else {
+          key.write(b);
+        }
+      }
+    }
+    addParameter(params, key, value, inValue);
+    return params;
+  }
+
+  private static void addParameter(Map<String, String> params, ByteArrayOutputStream key, ByteArrayOutputStream value, boolean inValue) throws BadRequestException {
+    if (!inValue) {
+      if (key.size() == 0) {
+        return; // empty pair ("a=1&&b=2")
+      }
+      throw new BadRequestException(); // a pair without '='
+    }
+    params.put(key.toString(StandardCharsets.UTF_8), value.toString(StandardCharsets.UTF_8));
+    key.reset();
+    value.reset();
+  }
+
+  // the IMF-fixdate of RFC 9110, RFC_1123_DATE_TIME would write "Sat, 3 Oct" without the zero
+  private static final DateTimeFormatter HTTP_DATE =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+  // dates in HTTP headers, like "Tue, 05 Nov 1994 08:12:31 GMT"
+  public static String formatHttpDate(long millis) {
+    return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+  }
+
+  // returns -1 when the date can't be parsed. the parser stays lenient, clients send both forms
+  public static long parseHttpDate(String date) {
+    try {
+      return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+}
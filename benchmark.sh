@@ -0,0 +1,27 @@
+# usage: ./benchmark.sh micro [filter] [--iterations N] [--warmup N] [--time ms]
+#        ./benchmark.sh load [--concurrency N] [--duration s] [--keep-alive true|false] [--file-sizes 1024,1048576] ...
+#        ./benchmark.sh server
+mkdir -p Benchmarks/classes
+javac -d Benchmarks/classes Sources/*.java Benchmarks/*.java || exit 1
+mode=$1
+shift
+if [ "$mode" = "server" ]; then
+    # the server under test runs on a copy of the root in Benchmarks/server, so the generated files and
+    # the POSTs (params_info.html) never touch the real root. the copy is removed when the server stops
+    root=$(grep '^root=' config.ini | cut -d= -f2-)
+    root=${root/#\~/$HOME}
+    rm -rf Benchmarks/server
+    mkdir -p Benchmarks/server/root
+    cp -r "$root"/. Benchmarks/server/root/
+    sed -e "s|^root=.*|root=$PWD/Benchmarks/server/root|" -e "s|^paramsHistoryFile=.*|paramsHistoryFile=|" \
+        config.ini > Benchmarks/server/config.ini
+    trap 'rm -rf Benchmarks/server' EXIT
+    (cd Sources && java -cp ../Benchmarks/classes MultiThreadedServer ../Benchmarks/server/config.ini)
+    exit
+fi
+cd Sources
+if [ "$mode" = "load" ]; then
+    java -cp ../Benchmarks/classes LoadGenerator "$@"
+else
+    java -cp ../Benchmarks/classes Benchmarks "$@"
+fi
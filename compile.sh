@@ -1 +1 @@
-javac Sources/MultiThreadedServer.java Sources/HTTPRequest.java Sources/ServerConfig.java Sources/Util.java Sources/BadRequestException.java
+javac Sources/MultiThreadedServer.java Sources/NioServer.java Sources/AccessLog.java Sources/Metrics.java Sources/FileCache.java Sources/FileSender.java Sources/ByteRange.java Sources/ConditionalRequest.java Sources/ContentEncoding.java Sources/MimeTypes.java Sources/ParamsInfoWriter.java Sources/PathResolver.java Sources/ChunkedOutputStream.java Sources/ResponseHeaders.java Sources/HTTPRequest.java Sources/RequestReader.java Sources/RequestBody.java Sources/PayloadTooLargeException.java Sources/BadRequestBodyException.java Sources/RequestTimeoutException.java Sources/ServerConfig.java Sources/ConfigReloader.java Sources/ConnectionWatchdog.java Sources/Util.java Sources/BadRequestException.java